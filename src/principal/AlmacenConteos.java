@@ -0,0 +1,240 @@
+package principal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Almacen en disco de los conteos por via, por columnas. Cada serie es (cruce, calle, via) y los
+ * datos se parten por tiempo en segmentos (una hora por defecto), un fichero por segmento:
+ *
+ *   cabecera: int magico, int numSeries, long inicio de la particion (ms)
+ *   indice (ordenado por clave): long clave, int muestras, long primero, long ultimo, long offInstantes, long offValores
+ *   columnas: instantes como delta de delta y valores como delta, los dos en zigzag + varint
+ *
+ * Los cambios de modo de los semaforos se guardan como una serie mas, con via VIA_MODO y la
+ * posicion del semaforo como calle. Con lecturas cada segundo cada muestra ocupa unos dos
+ * bytes. Los segmentos se leen con SegmentoConteos, proyectados en memoria y sin copiar.
+ */
+public class AlmacenConteos {
+	static final int MAGICO = 0x53454D43; //"SEMC"
+	static final int CABECERA = 16;
+	static final int ENTRADA = 44;
+	public static final long HORA = 3600 * 1000L;
+	public static final int VIA_MODO = 0xFF;
+
+	private final File directorio;
+	private final long particion; //ms por segmento
+	private final Map<Long, Serie> series = new HashMap<Long, Serie>();
+	private long particionActual = Long.MIN_VALUE;
+	private ByteBuffer columnas = ByteBuffer.allocate(64 * 20); //Se reutiliza para las columnas de cada serie
+
+	public AlmacenConteos(String directorio) {
+		this(directorio, HORA);
+	}
+
+	public AlmacenConteos(String directorio, long particion) {
+		this.directorio = new File(directorio);
+		this.particion = particion;
+		this.directorio.mkdirs();
+	}
+
+	public static long clave(int cruce, int calle, int via) {
+		return (long) cruce << 16 | (calle & 0xFF) << 8 | (via & 0xFF);
+	}
+
+	public static int cruce(long clave) {
+		return (int) (clave >>> 16);
+	}
+
+	public static int calle(long clave) {
+		return (int) (clave >>> 8) & 0xFF;
+	}
+
+	public static int via(long clave) {
+		return (int) clave & 0xFF;
+	}
+
+	/*
+	 * Anade una muestra. Las muestras deben llegar en orden de tiempo; al pasar a otra particion se escribe la anterior
+	 */
+	public synchronized void anadir(long instante, int cruce, int calle, int via, int valor) throws IOException {
+		long p = Math.floorDiv(instante, particion);
+		if (p != particionActual) {
+			volcar();
+			particionActual = p;
+		}
+		Long k = clave(cruce, calle, via);
+		Serie s = series.get(k);
+		if (s == null) {
+			s = new Serie();
+			series.put(k, s);
+		}
+		s.anadir(instante, valor);
+	}
+
+	public void anadir(long instante, int cruce, Calle c) throws IOException {
+		for (int v = 0; v < c.numVias(); v++)
+			anadir(instante, cruce, c.getPos(), v, c.via(v));
+	}
+
+	public void anadirModo(long instante, int cruce, int posicion, int modo) throws IOException {
+		anadir(instante, cruce, posicion, VIA_MODO, modo);
+	}
+
+	/*
+	 * Pasa al almacen todas las lecturas y ordenes a los semaforos de un Diario
+	 */
+	public void importar(Diario diario) throws IOException {
+		Diario.Cursor c = diario.cursor();
+		while (c.siguiente()) {
+			if (c.getTipo() == Diario.LECTURA) {
+				for (int v = 0; v < c.numValores(); v++)
+					anadir(c.getInstante(), c.getCruce(), c.getCalle(), v, c.valor(v));
+			} else if (c.getTipo() == Diario.ACTUACION) {
+				anadirModo(c.getInstante(), c.getCruce(), c.getCalle(), c.valor(0));
+			}
+		}
+		volcar();
+	}
+
+	/*
+	 * Escribe en disco la particion en memoria. Si ya habia un fichero para esa particion se crea otro a su lado.
+	 * Las columnas se escriben serie a serie detras del hueco del indice, que va al final; todo en un
+	 * fichero temporal que solo se renombra al nombre del segmento cuando esta completo
+	 */
+	public synchronized void volcar() throws IOException {
+		if (series.isEmpty())
+			return;
+		long[] claves = new long[series.size()];
+		int i = 0;
+		for (Long k : series.keySet())
+			claves[i++] = k;
+		Arrays.sort(claves);
+
+		ByteBuffer indice = ByteBuffer.allocate(CABECERA + claves.length * ENTRADA).order(ByteOrder.LITTLE_ENDIAN);
+		indice.putInt(MAGICO).putInt(claves.length).putLong(particionActual * particion);
+		long base = CABECERA + (long) claves.length * ENTRADA;
+		long inicio = particionActual * particion;
+		File f;
+		int seq = 0;
+		do {
+			f = new File(directorio, String.format("seg-%d-%d.col", particionActual, seq++));
+		} while (f.exists());
+		File temporal = new File(directorio, f.getName() + ".tmp");
+		try (RandomAccessFile raf = new RandomAccessFile(temporal, "rw"); FileChannel canal = raf.getChannel()) {
+			raf.setLength(0);
+			long posicion = base;
+			for (long k : claves) {
+				Serie s = series.get(k);
+				if (columnas.capacity() < s.n * 20) //Peor caso de los dos varint
+					columnas = ByteBuffer.allocate(s.n * 20);
+				ByteBuffer datos = columnas;
+				datos.clear();
+				long anterior = inicio;
+				long delta = 0;
+				for (int j = 0; j < s.n; j++) {
+					long d = s.instantes[j] - anterior;
+					escribirVarint(datos, zigzag(d - delta));
+					delta = d;
+					anterior = s.instantes[j];
+				}
+				long offValores = posicion + datos.position();
+				int previo = 0;
+				for (int j = 0; j < s.n; j++) {
+					escribirVarint(datos, zigzag(s.valores[j] - previo));
+					previo = s.valores[j];
+				}
+				indice.putLong(k).putInt(s.n).putLong(s.instantes[0]).putLong(s.instantes[s.n - 1]).putLong(posicion).putLong(offValores);
+				datos.flip();
+				while (datos.hasRemaining())
+					posicion += canal.write(datos, posicion);
+			}
+			indice.flip();
+			long p = 0;
+			while (indice.hasRemaining())
+				p += canal.write(indice, p);
+			canal.force(true);
+		}
+		Files.move(temporal.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		series.clear();
+	}
+
+	/*
+	 * Segmentos cuyo tiempo se solapa con [desde, hasta), ordenados por particion
+	 */
+	public List<SegmentoConteos> segmentos(long desde, long hasta) throws IOException {
+		List<SegmentoConteos> resul = new ArrayList<SegmentoConteos>();
+		File[] ficheros = directorio.listFiles();
+		if (ficheros == null)
+			return resul;
+		Arrays.sort(ficheros);
+		long pDesde = Math.floorDiv(desde, particion);
+		long pHasta = Math.floorDiv(hasta - 1, particion);
+		for (File f : ficheros) {
+			String n = f.getName();
+			if (!n.startsWith("seg-") || !n.endsWith(".col"))
+				continue;
+			//seg-<particion>-<seq>.col; la particion puede ser negativa
+			long p = Long.parseLong(n.substring(4, n.lastIndexOf('-')));
+			if (p >= pDesde && p <= pHasta)
+				resul.add(new SegmentoConteos(f));
+		}
+		resul.sort((a, b) -> Long.compare(a.getInicio(), b.getInicio()));
+		return resul;
+	}
+
+	/*
+	 * Recorre las muestras de una serie entre desde (incluido) y hasta (excluido)
+	 */
+	public void recorrer(int cruce, int calle, int via, long desde, long hasta, SegmentoConteos.Visitante v) throws IOException {
+		long k = clave(cruce, calle, via);
+		for (SegmentoConteos s : segmentos(desde, hasta))
+			s.recorrer(k, desde, hasta, v);
+	}
+
+	static long zigzag(long x) {
+		return (x << 1) ^ (x >> 63);
+	}
+
+	static long deszigzag(long x) {
+		return (x >>> 1) ^ -(x & 1);
+	}
+
+	static void escribirVarint(ByteBuffer b, long x) {
+		while ((x & ~0x7FL) != 0) {
+			b.put((byte) ((x & 0x7F) | 0x80));
+			x >>>= 7;
+		}
+		b.put((byte) x);
+	}
+
+	/*
+	 * Muestras de una serie en la particion actual, en arrays primitivos
+	 */
+	private static class Serie {
+		long[] instantes = new long[64];
+		int[] valores = new int[64];
+		int n;
+
+		void anadir(long instante, int valor) {
+			if (n == instantes.length) {
+				instantes = Arrays.copyOf(instantes, n * 2);
+				valores = Arrays.copyOf(valores, n * 2);
+			}
+			instantes[n] = instante;
+			valores[n] = valor;
+			n++;
+		}
+	}
+}
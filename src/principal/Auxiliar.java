@@ -13,6 +13,15 @@ public class Auxiliar {
 		return resul;
 		
 	}
+	/*
+	 * Como generadorDatos, pero rellena la calle sin crear listas ni escribir en la consola
+	 */
+	public static void generadorDatos(Calle c, int vias){
+		c.reset();
+		for(int i = 0; i< vias; i++) {
+			c.add((int)  Math.floor(Math.random()*8));
+		}
+	}
 	public static ArrayList<Integer> generadorDatosTesting(){
 		ArrayList<Integer> resul = new ArrayList<Integer>();
 		for(int i = 0; i< 5; i++) {
@@ -28,7 +37,8 @@ public class Auxiliar {
         for(String stringValue : stringArray) {
             try {
             	System.out.println("valuee: "+ stringValue);
-                //Convierte String a Integer y lo guarda en un Integer arrayList.              result.add(Integer.parseInt(stringValue));
+                //Convierte String a Integer y lo guarda en un Integer arrayList.
+                resul.add(Integer.parseInt(stringValue));
             } catch(NumberFormatException nfe) {
                System.out.println("No pudo parsear " + nfe);
                 
@@ -3,15 +3,22 @@ package principal;
 import java.util.ArrayList;
 
 public class Calle {
-    ArrayList<Integer> vias = new ArrayList<Integer>(); //Almacena el número de vehículos en cada via de la calle
+    private static final Integer[] ENTEROS = new Integer[1024]; //Conteos ya creados, para no crear un Integer por via en cada lectura
+    static {
+        for (int i = 0; i < ENTEROS.length; i++)
+            ENTEROS[i] = i;
+    }
+    private final ArrayList<Integer> vias = new ArrayList<Integer>(); //Almacena el número de vehículos en cada via de la calle
     private int Pos;
     protected SemC SC;
     protected SemG SG;
+    protected SemP SP; //Paso de peatones que cruza esta calle
 
     public Calle(int pos) {
         Pos = pos;
         SC= new SemC(2);
         SG= new SemG(2);
+        SP= new SemP(4);
     }
 
     public ArrayList<Integer> getVias() {
@@ -20,8 +27,15 @@ public class Calle {
     public int numVias(){
         return vias.size();
     }
+    /*
+     * Copia los valores: cada calle tiene su propia lista, asi que corregir una no toca otra
+     * aunque se les haya pasado la misma
+     */
     public void setVias(ArrayList<Integer> vias) {
-        this.vias = vias;
+        if (vias == this.vias)
+            return;
+        this.vias.clear();
+        this.vias.addAll(vias);
     }
 
     public int getPos() {
@@ -43,7 +57,16 @@ public class Calle {
         vias.clear();
     }
     public void add(int x){
-        vias.add(x);
+        vias.add(entero(x));
+    }
+    /*
+     * Cambia el conteo de la via v, sin crear objetos para los valores habituales
+     */
+    public void set(int v, int x){
+        vias.set(v, entero(x));
+    }
+    private static Integer entero(int x){
+        return x >= 0 && x < ENTEROS.length ? ENTEROS[x] : Integer.valueOf(x);
     }
     public int via(int x){
         return vias.get(x);
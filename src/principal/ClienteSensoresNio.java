@@ -0,0 +1,616 @@
+package principal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Cliente de sensores sin bloqueo: un solo hilo con un Selector atiende las conexiones de muchos
+ * cruces, en lugar de un HttpURLConnection bloqueado por cruce. Cada Punto es la FuenteDatos de un
+ * cruce y puede leer un flujo (SSE o chunked, como FuentePush) o sondear cada periodo ms sobre la
+ * misma conexion keep-alive.
+ *
+ * La respuesta HTTP (linea de estado, cabeceras, cuerpo chunked o con Content-Length) y las
+ * lecturas [[..],[..],[..],[..]] se analizan byte a byte desde un ByteBuffer directo, con el estado
+ * de cada conexion en el Punto, asi que da igual por donde corte los datos la red. Cada lectura
+ * completa se pasa al ejecutor de decisiones, que lanza el tick() del cruce; si ya hay uno pendiente
+ * no se encola otro.
+ *
+ * Con binario se pide FormatoBinario en Accept; si el servidor contesta con ese Content-Type el
+ * cuerpo se decodifica con un FormatoBinario.Decodificador en lugar de como texto.
+ *
+ * Si hacen falta mas hilos de red se crean varios clientes y se reparten los cruces entre ellos.
+ */
+public class ClienteSensoresNio implements Closeable {
+	private static final int TAM_BUFFER = 16 * 1024;
+	private static final int ESPERA_MIN = 1000; //ms entre reintentos de conexion
+	private static final int ESPERA_MAX = 30000;
+
+	private final Selector selector;
+	private final Executor decisiones;
+	private final ByteBuffer entrada = ByteBuffer.allocateDirect(TAM_BUFFER); //Solo la usa el hilo del selector
+	private final Queue<Punto> nuevos = new ConcurrentLinkedQueue<Punto>();
+	private final List<Punto> puntos = new ArrayList<Punto>(); //Solo la usa el hilo del selector
+	private final Thread hilo;
+	private volatile boolean cerrado;
+
+	public ClienteSensoresNio(Executor decisiones) throws IOException {
+		this.decisiones = decisiones;
+		this.selector = Selector.open();
+		hilo = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				bucle();
+			}
+		}, "sensores-nio");
+		hilo.setDaemon(true);
+		hilo.start();
+	}
+
+	/*
+	 * Crea la fuente de un cruce. periodo: 0 para un flujo, o ms entre sondeos. maxSilencio: ms sin
+	 * recibir nada tras los que la lectura deja de valer (con sondeo tiene que ser mayor que periodo)
+	 */
+	public Punto punto(InetSocketAddress direccion, String ruta, int periodo, int maxSilencio) {
+		return punto(direccion, ruta, periodo, maxSilencio, false);
+	}
+
+	public Punto punto(InetSocketAddress direccion, String ruta, int periodo, int maxSilencio, boolean binario) {
+		return new Punto(direccion, ruta, periodo, maxSilencio, binario);
+	}
+
+	/*
+	 * Empieza a leer el punto y a lanzar ticks de gc con cada lectura
+	 */
+	public void conectar(Punto p, GestionCruce gc) {
+		p.cruce = gc;
+		p.decisiones = decisiones;
+		nuevos.add(p);
+		selector.wakeup();
+	}
+
+	@Override
+	public void close() throws IOException {
+		cerrado = true;
+		selector.wakeup();
+		try {
+			hilo.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void bucle() {
+		try {
+			while (!cerrado) {
+				long ahora = System.currentTimeMillis();
+				Punto nuevo;
+				while ((nuevo = nuevos.poll()) != null) {
+					nuevo.proximo = ahora;
+					puntos.add(nuevo);
+				}
+				long siguiente = ahora + ESPERA_MAX;
+				for (int i = 0; i < puntos.size(); i++) {
+					Punto p = puntos.get(i);
+					//Un fallo de un punto (direccion sin resolver, ejecutor parado...) no para a los demas
+					try {
+						if (p.canal == null) {
+							if (p.proximo <= ahora)
+								abrir(p, ahora);
+						} else if (p.enEspera) {
+							if (p.proximo <= ahora) {
+								try {
+									pedir(p);
+								} catch (IOException e) {
+									cerrar(p, e.getMessage(), ahora);
+								}
+							}
+						} else if (System.nanoTime() - p.ultimoDato > p.maxSilencio * 1000000L) {
+							cerrar(p, "sin datos en " + p.maxSilencio + " ms", ahora);
+						}
+					} catch (RuntimeException e) {
+						cerrar(p, e.toString(), ahora);
+					}
+					if (p.canal == null || p.enEspera)
+						siguiente = Math.min(siguiente, p.proximo);
+					else
+						siguiente = Math.min(siguiente, ahora + p.maxSilencio);
+				}
+				selector.select(Math.max(1, siguiente - ahora));
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey k = it.next();
+					it.remove();
+					Punto p = (Punto) k.attachment();
+					try {
+						if (!k.isValid())
+							continue;
+						if (k.isConnectable() && p.canal.finishConnect())
+							pedir(p);
+						else if (k.isWritable())
+							escribir(p);
+						if (k.isValid() && k.isReadable())
+							leer(p);
+					} catch (IOException e) {
+						cerrar(p, e.getMessage(), System.currentTimeMillis());
+					} catch (RuntimeException e) {
+						cerrar(p, e.toString(), System.currentTimeMillis());
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			for (int i = 0; i < puntos.size(); i++)
+				cerrar(puntos.get(i), null, 0);
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void abrir(Punto p, long ahora) {
+		try {
+			SocketChannel c = SocketChannel.open();
+			c.configureBlocking(false);
+			p.canal = c;
+			p.ultimoDato = System.nanoTime();
+			p.enEspera = false;
+			if (c.connect(p.direccion)) {
+				c.register(selector, SelectionKey.OP_READ, p);
+				pedir(p);
+			} else {
+				c.register(selector, SelectionKey.OP_CONNECT, p);
+			}
+		} catch (IOException e) {
+			cerrar(p, e.getMessage(), ahora);
+		}
+	}
+
+	private void pedir(Punto p) throws IOException {
+		p.enEspera = false;
+		p.ultimoDato = System.nanoTime();
+		p.reiniciarRespuesta();
+		p.peticion.rewind();
+		escribir(p);
+	}
+
+	private void escribir(Punto p) throws IOException {
+		p.canal.write(p.peticion);
+		p.canal.keyFor(selector).interestOps(p.peticion.hasRemaining()
+				? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	private void leer(Punto p) throws IOException {
+		while (true) {
+			entrada.clear();
+			int n = p.canal.read(entrada);
+			if (n < 0) {
+				long ahora = System.currentTimeMillis();
+				if (p.sondeo() && (p.enEspera || p.finDeFlujo())) {
+					//El servidor cierra tras cada respuesta: se reconecta para el siguiente sondeo
+					long proximo = p.enEspera ? p.proximo : ahora + p.periodo;
+					cerrar(p, null, ahora);
+					p.proximo = proximo;
+				} else {
+					cerrar(p, "flujo cerrado", ahora);
+				}
+				return;
+			}
+			if (n == 0)
+				return;
+			entrada.flip();
+			p.ultimoDato = System.nanoTime();
+			if (!p.consumir(entrada)) {
+				cerrar(p, "respuesta no valida", System.currentTimeMillis());
+				return;
+			}
+			if (p.completa) {
+				//Fin de una respuesta: con sondeo se espera al siguiente, con flujo se vuelve a pedir
+				p.completa = false;
+				p.enEspera = true;
+				p.proximo = System.currentTimeMillis() + (p.sondeo() ? p.periodo : ESPERA_MIN);
+				return;
+			}
+		}
+	}
+
+	private void cerrar(Punto p, String motivo, long ahora) {
+		if (p.canal != null) {
+			try {
+				p.canal.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			p.canal = null;
+		}
+		p.enEspera = false;
+		if (motivo == null)
+			return;
+		System.out.println("Sensores " + p.direccion + p.ruta + ": " + motivo);
+		p.proximo = ahora + p.espera;
+		p.espera = Math.min(2 * p.espera, ESPERA_MAX);
+	}
+
+	/*
+	 * Conexion con los sensores de un cruce y ultima lectura recibida
+	 */
+	public static class Punto implements FuenteDatos {
+		//Estados de la respuesta HTTP
+		private static final int ESTADO = 0, CABECERAS = 1, TAM_TROZO = 2, TROZO = 3, FIN_TROZO = 4, LONGITUD = 5,
+				HASTA_CIERRE = 6, COLA = 7;
+		//Estados de la linea del cuerpo
+		private static final int INICIO = 0, PREFIJO = 1, VALORES = 2, IGNORAR = 3;
+		private static final byte[] DATA = "data:".getBytes(StandardCharsets.US_ASCII);
+		private static final int MAX_LINEA = 256;
+
+		private final InetSocketAddress direccion;
+		private final String ruta;
+		private final int periodo;
+		private final int maxSilencio;
+		private final ByteBuffer peticion;
+		private GestionCruce cruce;
+		private Executor decisiones;
+		private final AtomicBoolean pendiente = new AtomicBoolean();
+		private final Runnable tick = new Runnable() {
+			@Override
+			public void run() {
+				pendiente.set(false);
+				cruce.tickSeguro();
+			}
+		};
+
+		//Estado de la conexion, solo lo toca el hilo del selector
+		private SocketChannel canal;
+		private long proximo;
+		private boolean enEspera;
+		private int espera = ESPERA_MIN;
+		private long ultimoDato; //Ultimo byte recibido o peticion enviada: solo para cortar por silencio
+		private int estado;
+		private boolean chunked;
+		private long longitud;
+		private long restante;
+		private boolean extension;
+		private boolean completa;
+		private boolean cuerpoBinario;
+		private final byte[] linea = new byte[MAX_LINEA];
+		private int largo;
+		private int estadoLinea;
+		private int prefijo;
+		private int calle;
+		private int nivel;
+		private int valor;
+		private final int[][] entrante = new int[4][EstimadorCola.MAX_VIAS];
+		private final int[] numEntrante = new int[4];
+		private final FormatoBinario.Decodificador decodificador = new FormatoBinario.Decodificador(entrante, numEntrante);
+
+		//Ultima lectura completa, la copian los ticks
+		private final int[][] vias = new int[4][EstimadorCola.MAX_VIAS];
+		private final int[] numVias = new int[4];
+		private long lecturas;
+		private long ultimaLectura; //nanoTime de la ultima lectura publicada
+
+		private Punto(InetSocketAddress direccion, String ruta, int periodo, int maxSilencio, boolean binario) {
+			this.direccion = direccion;
+			this.ruta = ruta;
+			this.periodo = periodo;
+			this.maxSilencio = maxSilencio;
+			String texto = periodo > 0 ? "application/json" : "text/event-stream";
+			byte[] p = ("GET " + ruta + " HTTP/1.1\r\nHost: " + direccion.getHostString() + ":" + direccion.getPort()
+					+ "\r\nAccept: " + (binario ? FormatoBinario.TIPO + ", " + texto + ";q=0.5" : texto)
+					+ "\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+			peticion = ByteBuffer.allocateDirect(p.length);
+			peticion.put(p).flip();
+		}
+
+		private boolean sondeo() {
+			return periodo > 0;
+		}
+
+		private void reiniciarRespuesta() {
+			estado = ESTADO;
+			largo = 0;
+			chunked = false;
+			longitud = -1;
+			completa = false;
+			cuerpoBinario = false;
+			estadoLinea = INICIO;
+			decodificador.reiniciar();
+		}
+
+		/*
+		 * Avanza por los bytes recibidos. Devuelve false si la respuesta no es valida
+		 */
+		private boolean consumir(ByteBuffer b) {
+			while (b.hasRemaining() && !completa) {
+				byte c = b.get();
+				switch (estado) {
+					case ESTADO:
+					case CABECERAS:
+					case COLA:
+						if (c != '\n') {
+							if (largo < MAX_LINEA)
+								linea[largo++] = c;
+							continue;
+						}
+						if (largo > 0 && linea[largo - 1] == '\r')
+							largo--;
+						if (!cabecera())
+							return false;
+						largo = 0;
+						break;
+					case TAM_TROZO:
+						if (c == '\n') {
+							extension = false;
+							estado = restante == 0 ? COLA : TROZO;
+						} else if (c == ';') {
+							extension = true; //Extensiones del trozo: se ignoran hasta el fin de linea
+						} else if (!extension && c != '\r') {
+							int d = Character.digit(c, 16);
+							if (d < 0)
+								return false;
+							restante = restante * 16 + d;
+						}
+						break;
+					case TROZO:
+						if (!dato(c))
+							return false;
+						if (--restante == 0)
+							estado = FIN_TROZO;
+						break;
+					case FIN_TROZO:
+						if (c == '\n') {
+							estado = TAM_TROZO;
+							restante = 0;
+						}
+						break;
+					case LONGITUD:
+						if (!dato(c))
+							return false;
+						if (--restante == 0)
+							terminar();
+						break;
+					case HASTA_CIERRE:
+						if (!dato(c))
+							return false;
+						break;
+				}
+			}
+			return true;
+		}
+
+		/*
+		 * Procesa una linea de estado o de cabecera ya sin \r\n
+		 */
+		private boolean cabecera() {
+			if (estado == ESTADO) {
+				//HTTP/1.1 200 ...
+				if (largo < 12 || linea[9] != '2' || linea[10] != '0' || linea[11] != '0')
+					return false;
+				estado = CABECERAS;
+				return true;
+			}
+			if (estado == COLA) {
+				if (largo == 0)
+					terminar();
+				return true;
+			}
+			if (largo == 0) {
+				//Fin de las cabeceras
+				if (chunked) {
+					estado = TAM_TROZO;
+					restante = 0;
+				} else if (longitud >= 0) {
+					estado = LONGITUD;
+					restante = longitud;
+					if (longitud == 0)
+						terminar();
+				} else {
+					estado = HASTA_CIERRE;
+				}
+				return true;
+			}
+			if (empieza("content-type:"))
+				cuerpoBinario = contiene(FormatoBinario.TIPO);
+			else if (empieza("transfer-encoding:"))
+				chunked = contiene("chunked");
+			else if (empieza("content-length:")) {
+				longitud = 0;
+				for (int i = 15; i < largo; i++)
+					if (linea[i] >= '0' && linea[i] <= '9')
+						longitud = longitud * 10 + (linea[i] - '0');
+			}
+			return true;
+		}
+
+		private boolean empieza(String nombre) {
+			if (largo < nombre.length())
+				return false;
+			for (int i = 0; i < nombre.length(); i++)
+				if (Character.toLowerCase(linea[i]) != nombre.charAt(i))
+					return false;
+			return true;
+		}
+
+		private boolean contiene(String valor) {
+			for (int i = 0; i + valor.length() <= largo; i++) {
+				int j = 0;
+				while (j < valor.length() && Character.toLowerCase(linea[i + j]) == valor.charAt(j))
+					j++;
+				if (j == valor.length())
+					return true;
+			}
+			return false;
+		}
+
+		private void terminar() {
+			if (!cuerpoBinario)
+				cuerpo((byte) '\n'); //Por si el cuerpo no acaba en salto de linea
+			completa = true;
+		}
+
+		/*
+		 * El servidor cerro la conexion; si el cuerpo iba hasta el cierre la respuesta esta completa
+		 */
+		private boolean finDeFlujo() {
+			if (estado != HASTA_CIERRE)
+				return false;
+			if (!cuerpoBinario)
+				cuerpo((byte) '\n');
+			return true;
+		}
+
+		/*
+		 * Un byte del cuerpo, binario o de texto. Devuelve false si la lectura binaria no vale
+		 */
+		private boolean dato(byte c) {
+			if (!cuerpoBinario) {
+				cuerpo(c);
+				return true;
+			}
+			if (!decodificador.anadir(c))
+				return false;
+			if (decodificador.completa() && decodificador.getCalles() == 4)
+				publicar();
+			return true;
+		}
+
+		/*
+		 * Un byte del cuerpo de texto: lineas "data: [[..]]", "[[..]]", latidos y otros campos de SSE
+		 */
+		private void cuerpo(byte c) {
+			if (c == '\n') {
+				if (estadoLinea == VALORES && calle == 3 && nivel == 0)
+					publicar();
+				estadoLinea = INICIO;
+				return;
+			}
+			if (c == '\r')
+				return;
+			switch (estadoLinea) {
+				case INICIO:
+					if (c == '[') {
+						empezarValores();
+						valores(c);
+					} else if (c == DATA[0]) {
+						estadoLinea = PREFIJO;
+						prefijo = 1;
+					} else {
+						estadoLinea = IGNORAR;
+					}
+					break;
+				case PREFIJO:
+					if (c == DATA[prefijo]) {
+						if (++prefijo == DATA.length)
+							empezarValores();
+					} else {
+						estadoLinea = IGNORAR;
+					}
+					break;
+				case VALORES:
+					valores(c);
+					break;
+			}
+		}
+
+		private void empezarValores() {
+			estadoLinea = VALORES;
+			calle = -1;
+			nivel = 0;
+			valor = -1;
+		}
+
+		private void valores(byte c) {
+			if (c >= '0' && c <= '9') {
+				if (nivel != 2) {
+					estadoLinea = IGNORAR;
+					return;
+				}
+				valor = (valor < 0 ? 0 : valor * 10) + (c - '0');
+			} else if (c == '[') {
+				if (++nivel == 2) {
+					if (++calle == 4) {
+						estadoLinea = IGNORAR;
+						return;
+					}
+					numEntrante[calle] = 0;
+				}
+			} else if (c == ',' || c == ']') {
+				if (valor >= 0) {
+					if (numEntrante[calle] == EstimadorCola.MAX_VIAS) {
+						estadoLinea = IGNORAR;
+						return;
+					}
+					entrante[calle][numEntrante[calle]++] = valor;
+					valor = -1;
+				}
+				if (c == ']')
+					nivel--;
+			} else if (c != ' ') {
+				estadoLinea = IGNORAR;
+			}
+		}
+
+		/*
+		 * Deja la lectura a los ticks y pide uno al ejecutor de decisiones
+		 */
+		private void publicar() {
+			synchronized (this) {
+				for (int k = 0; k < 4; k++) {
+					System.arraycopy(entrante[k], 0, vias[k], 0, numEntrante[k]);
+					numVias[k] = numEntrante[k];
+				}
+				lecturas++;
+				ultimaLectura = System.nanoTime();
+			}
+			espera = ESPERA_MIN;
+			if (cruce != null && pendiente.compareAndSet(false, true)) {
+				try {
+					decisiones.execute(tick);
+				} catch (RejectedExecutionException e) {
+					pendiente.set(false); //Si no, no se volveria a pedir ningun tick
+					throw e;
+				}
+			}
+		}
+
+		/*
+		 * Copia la ultima lectura. Falla si no hay ninguna o es de hace mas de maxSilencio ms; reconectar
+		 * o volver a pedir no cuenta como dato nuevo
+		 */
+		@Override
+		public synchronized void leer(Calle c11, Calle c12, Calle c21, Calle c22) throws IOException {
+			if (lecturas == 0 || System.nanoTime() - ultimaLectura > maxSilencio * 1000000L)
+				throw new IOException("Sin datos recientes de " + direccion + ruta);
+			copiar(0, c11);
+			copiar(1, c12);
+			copiar(2, c21);
+			copiar(3, c22);
+		}
+
+		private void copiar(int k, Calle c) {
+			c.reset();
+			for (int v = 0; v < numVias[k]; v++)
+				c.add(vias[k][v]);
+		}
+
+		public synchronized long getLecturas() {
+			return lecturas;
+		}
+	}
+}
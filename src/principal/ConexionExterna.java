@@ -2,63 +2,234 @@ package principal;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class ConexionExterna {
+	//Cuerpos del POST ya codificados para los modos y posiciones habituales, para no montarlos en cada envio
+	private static final byte[][] CUERPOS = new byte[8 * 4][];
+	static {
+		for (int modo = 0; modo < 8; modo++)
+			for (int posicion = 0; posicion < 4; posicion++)
+				CUERPOS[modo * 4 + posicion] = cuerpo(modo, posicion).getBytes();
+	}
+	//Corta las lecturas de getDatos que pasan de su plazo total; uno para todas las conexiones
+	private static final ScheduledExecutorService CORTES = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "cortes-lectura");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	//Plazos (ms) de getDatos; entre los dos tienen que caber en un tick
+	private int plazoConexion = 200;
+	private int plazoLectura = 250;
+	//Plazo (ms) de postDatos; corto porque sin RegistroOrdenes se envia desde el tick
+	private int plazoOrden = 10;
+	//Con binario se pide FormatoBinario a los sensores y las ordenes se envian en 2 bytes
+	private boolean binario;
+	private final int[][] viasBinarias = new int[4][EstimadorCola.MAX_VIAS];
+	private final int[] numViasBinarias = new int[4];
+	private final FormatoBinario.Decodificador decodificador = new FormatoBinario.Decodificador(viasBinarias, numViasBinarias);
+	
+	/*
+	 * Cambia los plazos de conexion y de lectura de getDatos, en ms
+	 */
+	public void setPlazos(int conexion, int lectura) {
+		this.plazoConexion = conexion;
+		this.plazoLectura = lectura;
+	}
 	
+	public void setPlazoOrden(int plazoOrden) {
+		this.plazoOrden = plazoOrden;
+	}
+	
+	public boolean isBinario() {
+		return binario;
+	}
+	
+	public void setBinario(boolean binario) {
+		this.binario = binario;
+	}
 	
 	/*
-	 * Metodo que obtiene los datos de la API. Recibe JSON, pero devuelve un ArrayList de enteros
+	 * Metodo que obtiene los datos de la API. Recibe JSON, pero devuelve un ArrayList de enteros.
+	 * Lanza SocketTimeoutException si el servidor no responde dentro de los plazos
 	 */
 	public ArrayList<Integer> getDatos () throws IOException {
-		ArrayList<Integer> resul = new ArrayList<Integer>();
+		Calle c = new Calle(0);
+		getDatos(c);
+		return c.getVias();
+	}
+	/*
+	 * Como getDatos(), pero deja los conteos en las vias de c sin crear listas
+	 */
+	public void getDatos(Calle c) throws IOException {
+		if (binario)
+			getDatosBinarios(c);
+		else
+			analizar(leerDatos(), c);
+	}
+	/*
+	 * Pide FormatoBinario; si el servidor no lo conoce y contesta en JSON se analiza como siempre
+	 */
+	private void getDatosBinarios(Calle c) throws IOException {
+		URL url = new URL ("http://138.100.155.28/");
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setConnectTimeout(plazoConexion);
+		con.setReadTimeout(plazoLectura);
+		con.setRequestMethod("GET");
+		con.setRequestProperty("Accept", FormatoBinario.TIPO + ", application/json;q=0.5");
+		ScheduledFuture<?> corte = cortar(con);
+		c.reset();
+		try (InputStream in = con.getInputStream()) {
+			String tipo = con.getContentType();
+			if (tipo == null || !tipo.startsWith(FormatoBinario.TIPO)) {
+				String ultima = null;
+				for (String linea : new String(in.readAllBytes()).split("\n"))
+					if (!linea.isBlank())
+						ultima = linea;
+				analizar(ultima, c);
+			} else if (FormatoBinario.leerLectura(in, decodificador) > 0) {
+				for (int v = 0; v < numViasBinarias[0]; v++)
+					c.add(viasBinarias[0][v]);
+			}
+		} catch (IOException e) {
+			vencida(corte);
+			throw e;
+		} finally {
+			corte.cancel(false);
+		}
+		vencida(corte);
+	}
+	/*
+	 * Solo la peticion: devuelve la ultima linea de la respuesta sin analizar, o null si no hay ninguna
+	 */
+	public String leerDatos() throws IOException {
+		String resul = null;
 		 URL url = new URL ("http://138.100.155.28/");
 		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setConnectTimeout(plazoConexion);
+		con.setReadTimeout(plazoLectura);
 		con.setRequestMethod("GET");
 		con.setRequestProperty("Content-Type", "application/json");
 		
-		BufferedReader in = new BufferedReader( 
-			new InputStreamReader(con.getInputStream())); 
-		String inputLine; 
-		StringBuffer content = new StringBuffer(); 
-		while ((inputLine = in.readLine()) != null) { 
-			content.append(inputLine); 
-			String[] splits =  inputLine.replace("[","").replace("]","").replace(" ","").split(",");
-			 resul =Auxiliar.obtenerIntegerArray(splits);
-		} 
-		//LINEA SIGUIENTE PARA PRUEBAS
-//		resul= Auxiliar.generadorDatosTesting();
-		in.close(); 
+		ScheduledFuture<?> corte = cortar(con);
+		try (BufferedReader in = new BufferedReader( 
+			new InputStreamReader(con.getInputStream()))) { 
+			String inputLine; 
+			while ((inputLine = in.readLine()) != null) { 
+				resul = inputLine;
+			} 
+		} catch (IOException e) {
+			vencida(corte);
+			throw e;
+		} finally {
+			corte.cancel(false);
+		}
+		vencida(corte);
 		return resul;
 	}
+	/*
+	 * setReadTimeout solo limita cada read(): un servidor que manda un byte de vez en cuando nunca lo
+	 * agota. Esto desconecta la peticion entera si no ha acabado en plazoConexion + plazoLectura ms
+	 */
+	private ScheduledFuture<?> cortar(final HttpURLConnection con) {
+		return CORTES.schedule(new Runnable() {
+			@Override
+			public void run() {
+				con.disconnect();
+			}
+		}, plazoConexion + plazoLectura, TimeUnit.MILLISECONDS);
+	}
+	/*
+	 * Si el corte llego a desconectar, lo leido no vale aunque la lectura pareciera acabar bien
+	 */
+	private void vencida(ScheduledFuture<?> corte) throws SocketTimeoutException {
+		if (corte.isDone() && !corte.isCancelled())
+			throw new SocketTimeoutException("Lectura sin acabar en " + (plazoConexion + plazoLectura) + " ms");
+	}
+	/*
+	 * Pasa una linea JSON con un array de enteros a las vias de c, recorriendola caracter a caracter
+	 * para no crear cadenas ni Integer en cada lectura. Como antes, se saltan los valores que no son
+	 * enteros y null deja la calle sin vias
+	 */
+	public static void analizar(String linea, Calle c) {
+		c.reset();
+		if (linea == null)
+			return;
+		int valor = 0;
+		int digitos = 0;
+		boolean negativo = false;
+		boolean valido = true;
+		for (int i = 0, n = linea.length(); i <= n; i++) {
+			char ch = i < n ? linea.charAt(i) : ',';
+			if (ch == ',') {
+				if (valido && digitos > 0)
+					c.add(negativo ? -valor : valor);
+				valor = 0;
+				digitos = 0;
+				negativo = false;
+				valido = true;
+			} else if (ch >= '0' && ch <= '9') {
+				if (valor > (Integer.MAX_VALUE - 9) / 10)
+					valido = false;
+				else
+					valor = valor * 10 + (ch - '0');
+				digitos++;
+			} else if (ch == '-' && digitos == 0 && !negativo) {
+				negativo = true;
+			} else if (ch != '[' && ch != ']' && ch != ' ') {
+				valido = false;
+			}
+		}
+	}
 	/*
 	 * Metodo que devuelve datos a la API. Envia un JSON (clave: signal, value: x)
 	 */
 	public boolean postDatos(int modo, int posicion) {
+		return postDatos(modo, posicion, 0);
+	}
+	/*
+	 * Con secuencia > 0 la manda en X-Secuencia, para que el controlador descarte los reintentos
+	 * de una orden que ya aplico. Devuelve true si el controlador la confirma con un 200
+	 */
+	public boolean postDatos(int modo, int posicion, long secuencia) {
 		boolean resul = false;
-		final String POST_PARAMS = "{\n" + "\"mode\": "+modo+",\r\n" +
-		        "    \"position\": "+posicion+ "\n}";
+		byte[] POST_PARAMS = binario ? FormatoBinario.orden(modo, posicion)
+				: modo >= 0 && modo < 8 && posicion >= 0 && posicion < 4 ? CUERPOS[modo * 4 + posicion]
+				: cuerpo(modo, posicion).getBytes();
 		try {
 			URL url = new URL ("http://138.100.155.28/data");
 			HttpURLConnection con = (HttpURLConnection) url.openConnection();
-			con.setConnectTimeout(10);
-			con.setReadTimeout(10);
+			con.setConnectTimeout(plazoOrden);
+			con.setReadTimeout(plazoOrden);
 			con.setRequestMethod("POST");
-			con.setRequestProperty("Content-Type", "application/json");
+			if (secuencia > 0)
+				con.setRequestProperty("X-Secuencia", Long.toString(secuencia));
+			con.setRequestProperty("Content-Type", binario ? FormatoBinario.TIPO : "application/json");
 			con.setDoOutput(true);
 			OutputStream os = con.getOutputStream();
-			os.write(POST_PARAMS.getBytes()); 
+			os.write(POST_PARAMS); 
 			os.flush();
 			os.close();
 			int responseCode = con.getResponseCode();
 			System.out.println("POST Response Code :  " + responseCode);
 			System.out.println("POST Response Message : " + con.getResponseMessage());
 			if (responseCode == HttpURLConnection.HTTP_OK) { //success
+				resul = true;
 				BufferedReader in = new BufferedReader(new InputStreamReader(
 						con.getInputStream()));
 				String inputLine;
@@ -81,5 +252,9 @@ public class ConexionExterna {
 		
 		return resul;
 	}
-	
+
+	public static String cuerpo(int modo, int posicion) {
+		return "{\n" + "\"mode\": "+modo+",\r\n" +
+		        "    \"position\": "+posicion+ "\n}";
+	}
 }
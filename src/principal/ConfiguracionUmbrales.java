@@ -0,0 +1,98 @@
+package principal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Vigila un fichero de propiedades con los umbrales y, cuando cambia, publica la nueva version en
+ * todos los cruces registrados. Un fichero con errores o con una version que no es mas nueva se
+ * descarta y los cruces siguen con la anterior.
+ */
+public class ConfiguracionUmbrales {
+	private final File fichero;
+	private final List<GestionCruce> cruces = new CopyOnWriteArrayList<GestionCruce>();
+	private final ScheduledExecutorService vigilante = Executors.newSingleThreadScheduledExecutor();
+	private volatile Umbrales actual;
+	private long modificado = -1;
+
+	public ConfiguracionUmbrales(String fichero) {
+		this.fichero = new File(fichero);
+		this.actual = Umbrales.POR_DEFECTO;
+	}
+
+	/*
+	 * Lanza IllegalArgumentException, sin registrar el cruce, si no admite los umbrales actuales
+	 */
+	public void registrar(GestionCruce gc) {
+		gc.setUmbrales(actual);
+		cruces.add(gc);
+	}
+
+	public Umbrales getActual() {
+		return actual;
+	}
+
+	/*
+	 * Comprueba el fichero cada periodo (segundos)
+	 */
+	public void iniciar(int periodo) {
+		vigilante.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				recargar();
+			}
+		}, 0, periodo, TimeUnit.SECONDS);
+	}
+
+	public void parar() {
+		vigilante.shutdownNow();
+	}
+
+	/*
+	 * Lee el fichero si ha cambiado desde la ultima vez. Devuelve true si se ha publicado una version nueva.
+	 * Un fichero que no se pudo cargar se vuelve a leer en la siguiente comprobacion aunque no cambie su
+	 * fecha, que puede ser la misma si se estaba escribiendo al leerlo. Uno completo pero con una version
+	 * vieja, o que algun cruce no admite, no: no va a cambiar hasta que lo reescriban
+	 */
+	public boolean recargar() {
+		long m = fichero.lastModified();
+		if (m == 0 || m == modificado)
+			return false;
+		Properties p = new Properties();
+		try (InputStream in = new FileInputStream(fichero)) {
+			p.load(in);
+			Umbrales nuevos = actual.con(p);
+			if (nuevos.getVersion() <= actual.getVersion()) {
+				modificado = m;
+				System.out.println("Umbrales ignorados, version " + nuevos.getVersion() + " no es mas nueva que " + actual.getVersion());
+				return false;
+			}
+			//Se comprueban en todos los cruces antes de publicar, para no dejarlos a medias
+			try {
+				for (GestionCruce gc : cruces)
+					gc.comprobarUmbrales(nuevos);
+			} catch (IllegalArgumentException e) {
+				modificado = m;
+				System.out.println("Umbrales ignorados: " + e.getMessage());
+				return false;
+			}
+			modificado = m;
+			actual = nuevos;
+			for (GestionCruce gc : cruces)
+				gc.setUmbrales(nuevos);
+			System.out.println("Cargados " + nuevos);
+			return true;
+		} catch (IOException | IllegalArgumentException e) {
+			System.out.println("No se pudo cargar " + fichero + ": " + e);
+			return false;
+		}
+	}
+}
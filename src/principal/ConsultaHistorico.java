@@ -0,0 +1,257 @@
+package principal;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Consultas sobre el historico de AlmacenConteos. Cada segmento se procesa en un hilo: sus series
+ * se decodifican a arrays primitivos y se agregan con bucles simples. Los resultados parciales
+ * (maximos, sumas, histogramas) se fusionan al final, sin guardar nunca las muestras.
+ */
+public class ConsultaHistorico {
+	private static final int MAX_COLA = 1024; //Tope de los histogramas de coches
+	private static final int MAX_ESPERA = 3600; //Tope de los histogramas de espera (s)
+	private final AlmacenConteos almacen;
+	private final ExecutorService hilos;
+	private final ZoneId zona;
+
+	public ConsultaHistorico(AlmacenConteos almacen, int hilos) {
+		this(almacen, hilos, ZoneId.systemDefault());
+	}
+
+	public ConsultaHistorico(AlmacenConteos almacen, int hilos, ZoneId zona) {
+		this.almacen = almacen;
+		this.hilos = Executors.newFixedThreadPool(hilos);
+		this.zona = zona;
+	}
+
+	public void cerrar() {
+		hilos.shutdown();
+	}
+
+	/*
+	 * Trabajo sobre un segmento; recibe los arrays donde decodificar, propios de la tarea
+	 */
+	private interface TareaSegmento<T> {
+		T procesar(SegmentoConteos s, Columnas c);
+	}
+
+	private static class Columnas {
+		long[] instantes = new long[0];
+		int[] valores = new int[0];
+
+		int cargar(SegmentoConteos s, int serie) {
+			int n = s.muestras(serie);
+			if (instantes.length < n) {
+				instantes = new long[n];
+				valores = new int[n];
+			}
+			return s.decodificar(serie, instantes, valores);
+		}
+	}
+
+	/*
+	 * Ejecuta la tarea en paralelo sobre cada segmento del intervalo; los resultados salen en orden de tiempo
+	 */
+	private <T> List<T> porSegmento(long desde, long hasta, final TareaSegmento<T> tarea) throws IOException {
+		List<Callable<T>> tareas = new ArrayList<Callable<T>>();
+		for (final SegmentoConteos s : almacen.segmentos(desde, hasta)) {
+			tareas.add(new Callable<T>() {
+				@Override
+				public T call() {
+					return tarea.procesar(s, new Columnas());
+				}
+			});
+		}
+		List<T> resul = new ArrayList<T>(tareas.size());
+		try {
+			for (Future<T> f : hilos.invokeAll(tareas))
+				resul.add(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Consulta interrumpida", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Fallo al procesar un segmento", e.getCause());
+		}
+		return resul;
+	}
+
+	/*
+	 * Mayor numero de coches en cada via de un cruce (o de todos si cruce < 0). Clave: AlmacenConteos.clave()
+	 */
+	public Map<Long, Integer> maximoPorVia(final int cruce, final long desde, final long hasta) throws IOException {
+		Map<Long, Integer> resul = new TreeMap<Long, Integer>();
+		for (Map<Long, Integer> parcial : porSegmento(desde, hasta, new TareaSegmento<Map<Long, Integer>>() {
+			@Override
+			public Map<Long, Integer> procesar(SegmentoConteos s, Columnas c) {
+				Map<Long, Integer> m = new TreeMap<Long, Integer>();
+				for (int serie = 0; serie < s.numSeries(); serie++) {
+					long k = s.clave(serie);
+					if ((cruce >= 0 && AlmacenConteos.cruce(k) != cruce) || AlmacenConteos.via(k) == AlmacenConteos.VIA_MODO)
+						continue;
+					if (s.primero(serie) >= hasta || s.ultimo(serie) < desde)
+						continue;
+					int n = c.cargar(s, serie);
+					long[] t = c.instantes;
+					int[] v = c.valores;
+					int max = Integer.MIN_VALUE;
+					for (int j = 0; j < n; j++)
+						if (t[j] >= desde && t[j] < hasta && v[j] > max)
+							max = v[j];
+					if (max != Integer.MIN_VALUE)
+						m.put(k, max);
+				}
+				return m;
+			}
+		})) {
+			for (Map.Entry<Long, Integer> e : parcial.entrySet())
+				resul.merge(e.getKey(), e.getValue(), Math::max);
+		}
+		return resul;
+	}
+
+	/*
+	 * Suma de los coches de una via por ventanas de tiempo: resul[i] cubre [desde + i*ventana, desde + (i+1)*ventana)
+	 */
+	public long[] sumasPorVentana(int cruce, int calle, int via, final long desde, final long hasta, final long ventana)
+			throws IOException {
+		final long k = AlmacenConteos.clave(cruce, calle, via);
+		final int ventanas = (int) ((hasta - desde + ventana - 1) / ventana);
+		long[] resul = new long[ventanas];
+		for (long[] parcial : porSegmento(desde, hasta, new TareaSegmento<long[]>() {
+			@Override
+			public long[] procesar(SegmentoConteos s, Columnas c) {
+				long[] suma = new long[ventanas];
+				int serie = s.buscar(k);
+				if (serie < 0)
+					return suma;
+				int n = c.cargar(s, serie);
+				long[] t = c.instantes;
+				int[] v = c.valores;
+				for (int j = 0; j < n; j++)
+					if (t[j] >= desde && t[j] < hasta)
+						suma[(int) ((t[j] - desde) / ventana)] += v[j];
+				return suma;
+			}
+		})) {
+			for (int i = 0; i < ventanas; i++)
+				resul[i] += parcial[i];
+		}
+		return resul;
+	}
+
+	/*
+	 * Percentil p de los coches de una via para cada hora del dia (-1 en las horas sin datos)
+	 */
+	public int[] percentilPorHora(int cruce, int calle, int via, final long desde, final long hasta, double p)
+			throws IOException {
+		final long k = AlmacenConteos.clave(cruce, calle, via);
+		HistogramaEntero[] total = histogramas(MAX_COLA);
+		for (HistogramaEntero[] parcial : porSegmento(desde, hasta, new TareaSegmento<HistogramaEntero[]>() {
+			@Override
+			public HistogramaEntero[] procesar(SegmentoConteos s, Columnas c) {
+				HistogramaEntero[] h = histogramas(MAX_COLA);
+				int serie = s.buscar(k);
+				if (serie < 0)
+					return h;
+				int n = c.cargar(s, serie);
+				long[] t = c.instantes;
+				int[] v = c.valores;
+				//La hora solo se recalcula al pasar a la hora siguiente
+				long finHora = Long.MIN_VALUE;
+				int hora = 0;
+				for (int j = 0; j < n; j++) {
+					if (t[j] < desde || t[j] >= hasta)
+						continue;
+					if (t[j] >= finHora) {
+						hora = hora(t[j]);
+						finHora = finHora(t[j]);
+					}
+					h[hora].anadir(v[j]);
+				}
+				return h;
+			}
+		}))
+			fusionar(total, parcial);
+		return percentiles(total, p);
+	}
+
+	/*
+	 * Percentil p de los segundos que pasa en rojo el semaforo de una posicion, por hora del dia en
+	 * que empieza el rojo. Los cambios de modo se leen en paralelo y los intervalos se unen en orden,
+	 * porque un rojo puede empezar en un segmento y acabar en el siguiente.
+	 */
+	public int[] percentilRojoPorHora(int cruce, int posicion, long desde, long hasta, double p) throws IOException {
+		final long k = AlmacenConteos.clave(cruce, posicion, AlmacenConteos.VIA_MODO);
+		HistogramaEntero[] h = histogramas(MAX_ESPERA);
+		long inicioRojo = -1;
+		for (Columnas c : porSegmento(desde, hasta, new TareaSegmento<Columnas>() {
+			@Override
+			public Columnas procesar(SegmentoConteos s, Columnas c) {
+				int serie = s.buscar(k);
+				if (serie >= 0) {
+					int n = c.cargar(s, serie);
+					if (n < c.instantes.length)
+						c.instantes[n] = Long.MAX_VALUE; //Marca de fin
+				}
+				return c;
+			}
+		})) {
+			long[] t = c.instantes;
+			int[] v = c.valores;
+			for (int j = 0; j < t.length && t[j] != Long.MAX_VALUE; j++) {
+				if (t[j] < desde || t[j] >= hasta)
+					continue;
+				if (v[j] == 4) {
+					if (inicioRojo < 0)
+						inicioRojo = t[j];
+				} else if (inicioRojo >= 0) {
+					h[hora(inicioRojo)].anadir((int) ((t[j] - inicioRojo) / 1000));
+					inicioRojo = -1;
+				}
+			}
+		}
+		return percentiles(h, p);
+	}
+
+	private int hora(long instante) {
+		return Instant.ofEpochMilli(instante).atZone(zona).getHour();
+	}
+
+	/*
+	 * Primer instante de la hora local siguiente
+	 */
+	private long finHora(long instante) {
+		long desfase = zona.getRules().getOffset(Instant.ofEpochMilli(instante)).getTotalSeconds() * 1000L;
+		return instante - Math.floorMod(instante + desfase, AlmacenConteos.HORA) + AlmacenConteos.HORA;
+	}
+
+	private static HistogramaEntero[] histogramas(int max) {
+		HistogramaEntero[] h = new HistogramaEntero[24];
+		for (int i = 0; i < 24; i++)
+			h[i] = new HistogramaEntero(max);
+		return h;
+	}
+
+	private static void fusionar(HistogramaEntero[] total, HistogramaEntero[] parcial) {
+		for (int i = 0; i < total.length; i++)
+			total[i].fusionar(parcial[i]);
+	}
+
+	private static int[] percentiles(HistogramaEntero[] h, double p) {
+		int[] resul = new int[h.length];
+		for (int i = 0; i < h.length; i++)
+			resul[i] = h[i].percentil(p);
+		return resul;
+	}
+}
@@ -0,0 +1,208 @@
+package principal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Coordina los cruces de un mismo eje (onda verde). Los cruces se dan en orden a lo largo
+ * del eje; la calle 1 (c11) es el sentido de ida y la calle 2 (c12) el de vuelta.
+ * Calcula los desfases entre cruces y empuja a cada GestionCruce el instante en el que
+ * deberia empezar su proximo verde, sin bloquear su tick.
+ */
+public class CoordinadorCorredor {
+	private final List<GestionCruce> cruces;
+	private final int[] tiemposViaje; //Segundos de viaje entre el cruce i y el i+1
+	private final int cicloMin;
+	private final int cicloMax;
+	private final ExecutorService calculo;
+	private final ScheduledExecutorService planificador;
+	private final long referencia = System.currentTimeMillis(); //Instante comun en el que empiezan los ciclos
+	private volatile int ciclo;
+	private volatile int[] desfases;
+	private volatile int banda; //Segundos que cada cruce mantiene el verde de la onda, 0 = medio ciclo
+	private final EstadoCruce.Vista vista = new EstadoCruce.Vista(); //Solo la usa recalcular()
+
+	public CoordinadorCorredor(List<GestionCruce> cruces, int[] tiemposViaje, int cicloMin, int cicloMax) {
+		if (tiemposViaje.length != cruces.size() - 1)
+			throw new IllegalArgumentException("Se esperaban " + (cruces.size() - 1) + " tiempos de viaje, no " + tiemposViaje.length);
+		if (cicloMin <= 0 || cicloMax < cicloMin)
+			throw new IllegalArgumentException("Rango de ciclo no valido: " + cicloMin + "-" + cicloMax);
+		this.cruces = new ArrayList<GestionCruce>(cruces);
+		this.tiemposViaje = tiemposViaje.clone();
+		this.cicloMin = cicloMin;
+		this.cicloMax = cicloMax;
+		this.ciclo = cicloMin;
+		this.desfases = new int[cruces.size()];
+		this.calculo = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		this.planificador = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	/*
+	 * Recalcula los desfases cada periodo (segundos) con los flujos observados y envia las sugerencias
+	 */
+	public void iniciar(int periodo) {
+		planificador.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					recalcular();
+					enviarSugerencias();
+				} catch (Exception e) {
+					System.out.println("Fallo en la coordinacion del corredor: " + e);
+				}
+			}
+		}, 0, periodo, TimeUnit.SECONDS);
+	}
+
+	public void parar() {
+		planificador.shutdownNow();
+		calculo.shutdownNow();
+	}
+
+	public int getCiclo() {
+		return ciclo;
+	}
+
+	public int[] getDesfases() {
+		return desfases.clone();
+	}
+
+	public int getBanda() {
+		return banda > 0 ? banda : ciclo / 2;
+	}
+
+	/*
+	 * Ancho de la banda verde: lo que tarda en pasar el peloton. Los cruces no cambian de fase
+	 * durante ese tiempo aunque sus reglas lo pidan
+	 */
+	public void setBanda(int banda) {
+		if (banda < 0)
+			throw new IllegalArgumentException("Banda no valida: " + banda);
+		this.banda = banda;
+	}
+
+	/*
+	 * Busca en paralelo el mejor ciclo del rango; para cada ciclo los desfases salen de una programacion dinamica.
+	 * Los flujos salen del ultimo EstadoCruce publicado: las listas de las Calles las reescribe el tick
+	 */
+	public synchronized void recalcular() throws InterruptedException, ExecutionException {
+		final int n = cruces.size();
+		final int[] ida = new int[n];
+		final int[] vuelta = new int[n];
+		for (int i = 0; i < n; i++) {
+			if (!cruces.get(i).getEstado().leer(vista))
+				continue; //Aun sin publicar: sin flujo
+			ida[i] = total(vista, 0);
+			vuelta[i] = total(vista, 1);
+		}
+		List<Callable<int[]>> candidatos = new ArrayList<Callable<int[]>>();
+		for (int c = cicloMin; c <= cicloMax; c++) {
+			final int cand = c;
+			candidatos.add(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					return desfasesOptimos(cand, ida, vuelta);
+				}
+			});
+		}
+		int[] mejor = null;
+		int mejorCiclo = cicloMin;
+		for (Future<int[]> f : calculo.invokeAll(candidatos)) {
+			int[] r = f.get();
+			//r[0] = coste, r[1] = ciclo, r[2..] = desfases
+			if (mejor == null || r[0] < mejor[0]) {
+				mejor = r;
+				mejorCiclo = r[1];
+			}
+		}
+		int[] nuevos = new int[n];
+		System.arraycopy(mejor, 2, nuevos, 0, n);
+		desfases = nuevos;
+		ciclo = mejorCiclo;
+	}
+
+	private static int total(EstadoCruce.Vista v, int calle) {
+		int resul = 0;
+		for (int i = 0; i < v.numVias[calle]; i++)
+			resul += v.via(calle, i);
+		return resul;
+	}
+
+	/*
+	 * Programacion dinamica a lo largo del eje. El desfase del primer cruce es 0 y coste[o] es el
+	 * menor retraso ponderado por flujo hasta el cruce actual si este tiene desfase o.
+	 * Devuelve {coste, ciclo, desfases...}
+	 */
+	int[] desfasesOptimos(int c, int[] ida, int[] vuelta) {
+		int n = cruces.size();
+		int[] coste = new int[c];
+		int[] siguiente = new int[c];
+		int[][] previo = new int[n][c];
+		for (int o = 1; o < c; o++)
+			coste[o] = Integer.MAX_VALUE;
+		for (int i = 0; i + 1 < n; i++) {
+			int t = tiemposViaje[i];
+			for (int o2 = 0; o2 < c; o2++) {
+				int mejor = Integer.MAX_VALUE;
+				int arg = 0;
+				for (int o1 = 0; o1 < c; o1++) {
+					if (coste[o1] == Integer.MAX_VALUE)
+						continue;
+					//El peloton de ida sale en o1 y llega en o1+t; el de vuelta sale en o2 y llega en o2+t
+					int v = coste[o1] + ida[i] * desvio(o2 - o1 - t, c) + vuelta[i + 1] * desvio(o1 - o2 - t, c);
+					if (v < mejor) {
+						mejor = v;
+						arg = o1;
+					}
+				}
+				siguiente[o2] = mejor;
+				previo[i + 1][o2] = arg;
+			}
+			int[] aux = coste;
+			coste = siguiente;
+			siguiente = aux;
+		}
+		int fin = 0;
+		for (int o = 1; o < c; o++)
+			if (coste[o] < coste[fin])
+				fin = o;
+		int[] resul = new int[n + 2];
+		resul[0] = coste[fin];
+		resul[1] = c;
+		for (int i = n - 1; i >= 0; i--) {
+			resul[i + 2] = fin;
+			fin = previo[i][fin];
+		}
+		return resul;
+	}
+
+	/*
+	 * Segundos que espera un peloton que llega d segundos despues (o antes) del inicio del verde, en un ciclo c
+	 */
+	private static int desvio(int d, int c) {
+		int m = Math.floorMod(d, c);
+		return Math.min(m, c - m);
+	}
+
+	/*
+	 * Calcula para cada cruce el siguiente inicio de verde segun su desfase y se lo sugiere junto con la banda
+	 */
+	public void enviarSugerencias() {
+		long ahora = System.currentTimeMillis();
+		long cicloMs = ciclo * 1000L;
+		int[] d = desfases;
+		int b = getBanda();
+		for (int i = 0; i < cruces.size(); i++) {
+			long base = referencia + d[i] * 1000L;
+			long k = Math.max(0, (ahora - base + cicloMs - 1) / cicloMs);
+			cruces.get(i).sugerirInicioVerde(base + k * cicloMs, b);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package principal;
+
+import java.util.Arrays;
+
+/*
+ * Detecta en linea lecturas de sensores sospechosas, por via y con memoria y coste fijos:
+ *  - ATASCADO: el mismo valor distinto de 0 durante mas de limiteAtasco lecturas; la media vuelve a
+ *    la que habia cuando empezo a repetirse, para no corregir con el valor atascado
+ *  - SALTO: un cambio mayor que saltoMax entre dos lecturas; se descarta hasta que se confirma
+ *  - CEROS / VACIA: la calle entera a 0 cuando se esperaban coches, o sin vias (getDatos sin datos)
+ *  - ATIPICO: mas de zMax desviaciones de la media movil exponencial
+ *  - CAMBIO: CUSUM sobre la desviacion normalizada; indica un cambio de nivel real, se reinician
+ *    las estadisticas de la via para que no quede marcada como atipica
+ * corregir() cambia en la Calle cada valor marcado por w*x + (1-w)*esperado, con peso w 0 para
+ * lecturas descartadas y 0.5 para atipicas, asi que las reglas y estimadores usan ya el valor corregido.
+ */
+public class DetectorAnomalias {
+	public static final int ATASCADO = 0;
+	public static final int SALTO = 1;
+	public static final int CEROS = 2;
+	public static final int VACIA = 3;
+	public static final int ATIPICO = 4;
+	public static final int CAMBIO = 5;
+	private static final int TIPOS = 6;
+	private static final int CALLES = EstimadorCola.CALLES;
+	private static final int MAX_VIAS = EstimadorCola.MAX_VIAS;
+	private static final int CARRILES = CALLES * MAX_VIAS;
+	private static final float ALFA = 0.05f; //Peso de la lectura en media y varianza
+	private static final float HOLGURA = 0.5f; //k del CUSUM, en desviaciones
+	private static final float LIMITE_CUSUM = 8f; //h del CUSUM, en desviaciones
+	private static final int CONFIRMAR_SALTO = 3; //Lecturas seguidas en el nuevo nivel para aceptar un salto
+	private static final int LIMITE_CEROS = 120; //Lecturas a 0 tras las que se aceptan como reales
+
+	private final int limiteAtasco;
+	private final int saltoMax;
+	private final float zMax;
+	private final int[] ultimo = new int[CARRILES];
+	private final int[] repeticiones = new int[CARRILES];
+	private final int[] saltos = new int[CARRILES];
+	private final float[] media = new float[CARRILES];
+	private final float[] varianza = new float[CARRILES];
+	private final float[] mediaPrevia = new float[CARRILES]; //Media y varianza al empezar las repeticiones
+	private final float[] varianzaPrevia = new float[CARRILES];
+	private final float[] cusumAlto = new float[CARRILES];
+	private final float[] cusumBajo = new float[CARRILES];
+	private final int[] lecturas = new int[CARRILES];
+	private final float[] peso = new float[CARRILES];
+	private final int[] vias = new int[CALLES];
+	private final int[] ceros = new int[CALLES];
+	private final long[] contadores = new long[TIPOS];
+
+	public DetectorAnomalias() {
+		this(300, 10, 4f);
+	}
+
+	public DetectorAnomalias(int limiteAtasco, int saltoMax, float zMax) {
+		this.limiteAtasco = limiteAtasco;
+		this.saltoMax = saltoMax;
+		this.zMax = zMax;
+		Arrays.fill(peso, 1f);
+	}
+
+	/*
+	 * Revisa la lectura de la calle k (0 = c11 ... 3 = c22) y corrige en ella las vias marcadas
+	 */
+	public void corregir(int k, Calle c) {
+		int m = Math.min(c.numVias(), MAX_VIAS);
+		if (m == 0) {
+			contadores[VACIA]++;
+			//Se rellenan las vias conocidas con lo esperado
+			for (int v = 0; v < vias[k]; v++)
+				c.add(Math.round(media[k * MAX_VIAS + v]));
+			return;
+		}
+		vias[k] = m;
+		boolean todoCeros = true;
+		float esperado = 0;
+		for (int v = 0; v < m; v++) {
+			todoCeros &= c.via(v) == 0;
+			esperado += media[k * MAX_VIAS + v];
+		}
+		if (todoCeros && esperado >= 1 && ceros[k] < LIMITE_CEROS) {
+			ceros[k]++;
+			contadores[CEROS]++;
+			for (int v = 0; v < m; v++) {
+				peso[k * MAX_VIAS + v] = 0;
+				c.set(v, Math.round(media[k * MAX_VIAS + v]));
+			}
+			return;
+		}
+		ceros[k] = todoCeros ? ceros[k] : 0;
+		for (int v = 0; v < m; v++) {
+			int i = k * MAX_VIAS + v;
+			int x = c.via(v);
+			float w = revisar(i, x);
+			peso[i] = w;
+			if (w < 1)
+				c.set(v, Math.round(w * x + (1 - w) * media[i]));
+		}
+	}
+
+	/*
+	 * Actualiza las estadisticas de un carril y devuelve el peso de la lectura
+	 */
+	private float revisar(int i, int x) {
+		if (lecturas[i]++ == 0) {
+			ultimo[i] = x;
+			media[i] = x;
+			varianza[i] = 1;
+			return 1;
+		}
+		//Atasco
+		repeticiones[i] = x == ultimo[i] ? repeticiones[i] + 1 : 0;
+		if (repeticiones[i] == 1) {
+			mediaPrevia[i] = media[i];
+			varianzaPrevia[i] = varianza[i];
+		}
+		int salto = Math.abs(x - ultimo[i]);
+		ultimo[i] = x;
+		if (x != 0 && repeticiones[i] >= limiteAtasco) {
+			if (repeticiones[i] == limiteAtasco) {
+				media[i] = mediaPrevia[i];
+				varianza[i] = varianzaPrevia[i];
+			}
+			contadores[ATASCADO]++;
+			return 0;
+		}
+		//Salto imposible: se ignora hasta que varias lecturas seguidas lo confirman
+		if (Math.abs(x - media[i]) > saltoMax) {
+			if (salto > saltoMax || saltos[i] > 0) {
+				if (++saltos[i] < CONFIRMAR_SALTO) {
+					contadores[SALTO]++;
+					return 0;
+				}
+				reiniciar(i, x);
+				return 1;
+			}
+		}
+		saltos[i] = 0;
+		//Estadisticas moviles y CUSUM sobre la desviacion normalizada
+		float desv = (float) Math.sqrt(Math.max(varianza[i], 0.25f));
+		float z = (x - media[i]) / desv;
+		cusumAlto[i] = Math.max(0, cusumAlto[i] + z - HOLGURA);
+		cusumBajo[i] = Math.max(0, cusumBajo[i] - z - HOLGURA);
+		if (cusumAlto[i] > LIMITE_CUSUM || cusumBajo[i] > LIMITE_CUSUM) {
+			contadores[CAMBIO]++;
+			reiniciar(i, x);
+			return 1;
+		}
+		float d = x - media[i];
+		media[i] += ALFA * d;
+		varianza[i] = (1 - ALFA) * (varianza[i] + ALFA * d * d);
+		if (Math.abs(z) > zMax) {
+			contadores[ATIPICO]++;
+			return 0.5f;
+		}
+		return 1;
+	}
+
+	private void reiniciar(int i, int x) {
+		media[i] = x;
+		varianza[i] = 1;
+		cusumAlto[i] = 0;
+		cusumBajo[i] = 0;
+		saltos[i] = 0;
+	}
+
+	/*
+	 * Peso de la ultima lectura de la via v de la calle k: 1 normal, 0 descartada
+	 */
+	public float peso(int k, int v) {
+		return peso[k * MAX_VIAS + v];
+	}
+
+	public long anomalias(int tipo) {
+		return contadores[tipo];
+	}
+}
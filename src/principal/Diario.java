@@ -0,0 +1,213 @@
+package principal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Diario binario de solo anadir con lecturas de sensores, decisiones y ordenes a los semaforos.
+ * Cada evento ocupa un registro de TAM bytes en un fichero proyectado en memoria por segmentos:
+ *
+ *   0  long  instante (ms)
+ *   8  int   cruce
+ *   12 byte  tipo (0 = registro vacio, se escribe el ultimo)
+ *   13 byte  calle o posicion
+ *   14 short numero de valores
+ *   16 short valores[MAX_VALORES]
+ *
+ * Escribir no crea objetos: el hueco se reserva con un contador atomico y se rellena con
+ * escrituras absolutas, asi que varios cruces pueden escribir a la vez sin bloquearse.
+ */
+public class Diario implements Closeable {
+	public static final byte LECTURA = 1; //valores = coches por via
+	public static final byte DECISION = 2; //valores[0] = acciones, valores[1] = modo de c11
+	public static final byte ACTUACION = 3; //calle = posicion, valores[0] = modo
+	public static final byte PULSACION = 4; //calle = posicion del pulsador; se apunta cuando el tick la recoge
+	public static final byte PRIORIDAD = 5; //calle = posicion, valores[0] y [1] = duracion (ms), parte alta y baja
+	public static final int TAM = 32;
+	public static final int MAX_VALORES = (TAM - 16) / 2;
+	private static final int MAGICO = 0x53454D4A; //"SEMJ"
+	private static final int REGISTROS_SEGMENTO = 1 << 21; //64 MB por segmento
+
+	private final RandomAccessFile fichero;
+	private final FileChannel canal;
+	private volatile MappedByteBuffer[] segmentos = new MappedByteBuffer[0];
+	private final AtomicLong siguiente;
+
+	public Diario(String ruta) throws IOException {
+		fichero = new RandomAccessFile(ruta, "rw");
+		canal = fichero.getChannel();
+		MappedByteBuffer s0 = segmento(0);
+		if (s0.getInt(0) == 0) {
+			s0.putInt(4, TAM);
+			s0.putInt(0, MAGICO);
+		} else if (s0.getInt(0) != MAGICO || s0.getInt(4) != TAM) {
+			close();
+			throw new IOException(ruta + " no es un diario de registros de " + TAM + " bytes");
+		}
+		siguiente = new AtomicLong(buscarFinal());
+	}
+
+	/*
+	 * El registro 0 es la cabecera. Al reabrir se sigue detras del ultimo registro escrito
+	 */
+	private long buscarFinal() throws IOException {
+		long n = canal.size() / TAM;
+		long i = Math.max(1, n - 1);
+		while (i > 1 && tipo(i - 1) == 0)
+			i--;
+		while (i < n && tipo(i) != 0)
+			i++;
+		return i;
+	}
+
+	private byte tipo(long i) throws IOException {
+		return segmento((int) (i / REGISTROS_SEGMENTO)).get((int) (i % REGISTROS_SEGMENTO) * TAM + 12);
+	}
+
+	private MappedByteBuffer segmento(int s) throws IOException {
+		MappedByteBuffer[] actuales = segmentos;
+		if (s < actuales.length)
+			return actuales[s];
+		synchronized (this) {
+			actuales = segmentos;
+			if (s < actuales.length)
+				return actuales[s];
+			MappedByteBuffer[] nuevos = new MappedByteBuffer[s + 1];
+			System.arraycopy(actuales, 0, nuevos, 0, actuales.length);
+			for (int k = actuales.length; k <= s; k++)
+				nuevos[k] = canal.map(FileChannel.MapMode.READ_WRITE, (long) k * REGISTROS_SEGMENTO * TAM, (long) REGISTROS_SEGMENTO * TAM);
+			segmentos = nuevos;
+			return nuevos[s];
+		}
+	}
+
+	/*
+	 * Lectura de una calle. Solo se guardan las primeras MAX_VALORES vias
+	 */
+	public void lectura(long instante, int cruce, Calle c) throws IOException {
+		long i = siguiente.getAndIncrement();
+		MappedByteBuffer b = segmento((int) (i / REGISTROS_SEGMENTO));
+		int p = (int) (i % REGISTROS_SEGMENTO) * TAM;
+		int n = Math.min(c.numVias(), MAX_VALORES);
+		b.putLong(p, instante);
+		b.putInt(p + 8, cruce);
+		b.put(p + 13, (byte) c.getPos());
+		b.putShort(p + 14, (short) n);
+		for (int v = 0; v < n; v++)
+			b.putShort(p + 16 + 2 * v, (short) c.via(v));
+		b.put(p + 12, LECTURA);
+	}
+
+	public void decision(long instante, int cruce, int acciones, int modo) throws IOException {
+		escribir(instante, cruce, DECISION, (byte) 0, acciones, modo);
+	}
+
+	public void actuacion(long instante, int cruce, int modo, int posicion) throws IOException {
+		escribir(instante, cruce, ACTUACION, (byte) posicion, modo, 0);
+	}
+
+	/*
+	 * Pulsacion de peatones; instante es el de la pulsacion, no el del tick que la recoge
+	 */
+	public void pulsacion(long instante, int cruce, int calle) throws IOException {
+		escribir(instante, cruce, PULSACION, (byte) calle, 0, 0);
+	}
+
+	public void prioridad(long instante, int cruce, int calle, int duracion) throws IOException {
+		escribir(instante, cruce, PRIORIDAD, (byte) calle, duracion >>> 16, duracion & 0xFFFF);
+	}
+
+	private void escribir(long instante, int cruce, byte tipo, byte calle, int v0, int v1) throws IOException {
+		long i = siguiente.getAndIncrement();
+		MappedByteBuffer b = segmento((int) (i / REGISTROS_SEGMENTO));
+		int p = (int) (i % REGISTROS_SEGMENTO) * TAM;
+		b.putLong(p, instante);
+		b.putInt(p + 8, cruce);
+		b.put(p + 13, calle);
+		b.putShort(p + 14, (short) 2);
+		b.putShort(p + 16, (short) v0);
+		b.putShort(p + 18, (short) v1);
+		b.put(p + 12, tipo);
+	}
+
+	public long registros() {
+		return siguiente.get() - 1;
+	}
+
+	/*
+	 * Fuerza a disco lo escrito hasta ahora
+	 */
+	public void sincronizar() {
+		for (MappedByteBuffer b : segmentos)
+			b.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		canal.close();
+		fichero.close();
+	}
+
+	/*
+	 * Cursor para recorrer el diario en orden. Es el mismo objeto en cada registro, no crea nada por evento
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	public class Cursor {
+		private MappedByteBuffer b;
+		private int p;
+		private long i = 0;
+
+		/*
+		 * Avanza al siguiente registro escrito. Devuelve false al llegar al final
+		 */
+		public boolean siguiente() throws IOException {
+			long fin = Diario.this.siguiente.get();
+			while (++i < fin) {
+				b = segmento((int) (i / REGISTROS_SEGMENTO));
+				p = (int) (i % REGISTROS_SEGMENTO) * TAM;
+				if (b.get(p + 12) != 0)
+					return true;
+			}
+			i = fin - 1;
+			return false;
+		}
+
+		public long getInstante() {
+			return b.getLong(p);
+		}
+
+		public int getCruce() {
+			return b.getInt(p + 8);
+		}
+
+		public byte getTipo() {
+			return b.get(p + 12);
+		}
+
+		public int getCalle() {
+			return b.get(p + 13);
+		}
+
+		public int numValores() {
+			return b.getShort(p + 14);
+		}
+
+		public int valor(int v) {
+			return b.getShort(p + 16 + 2 * v);
+		}
+
+		/*
+		 * Entero guardado en los valores v y v + 1, como la duracion de PRIORIDAD
+		 */
+		public int entero(int v) {
+			return (valor(v) & 0xFFFF) << 16 | (valor(v + 1) & 0xFFFF);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package principal;
+
+import java.lang.invoke.VarHandle;
+
+/*
+ * Ultimo estado publicado de un cruce, para que otros hilos lo lean sin tomar el cerrojo del tick.
+ * Es un seqlock sobre campos preasignados: el tick (un solo escritor, dentro del synchronized de
+ * GestionCruce) pone la secuencia en impar, copia los datos y la deja en par; el lector copia a su
+ * Vista y repite si la secuencia cambio por medio. Publicar no reserva memoria.
+ */
+public class EstadoCruce {
+	private static final int VIAS = EstimadorCola.MAX_VIAS;
+
+	private volatile long secuencia;
+	private final int[] modos = new int[8]; //SC y SG de c11, c12, c21, c22
+	private final int[] peatones = new int[4]; //SP de c11, c12, c21, c22
+	private final int[] numVias = new int[4];
+	private final int[] vias = new int[4 * VIAS];
+	private long inicioFase;
+	private int ultimaDecision;
+	private boolean planFijo;
+	private boolean degradado;
+
+	/*
+	 * Copia de un estado hecha por un lector; se reutiliza entre lecturas
+	 */
+	public static class Vista {
+		public long version;
+		public final int[] modos = new int[8];
+		public final int[] peatones = new int[4];
+		public final int[] numVias = new int[4];
+		public final int[] vias = new int[4 * VIAS];
+		public long inicioFase;
+		public int ultimaDecision;
+		public boolean planFijo;
+		public boolean degradado;
+
+		public int via(int calle, int v) {
+			return vias[calle * VIAS + v];
+		}
+	}
+
+	void publicar(GestionCruce gc) {
+		publicar(gc, true);
+	}
+
+	/*
+	 * Solo los modos y el estado, con las vias de la ultima publicacion. Para los cambios de luz que
+	 * no van por el tick, que pueden coincidir con una lectura escribiendo las vias
+	 */
+	void publicarModos(GestionCruce gc) {
+		publicar(gc, false);
+	}
+
+	private void publicar(GestionCruce gc, boolean conVias) {
+		long s = secuencia;
+		secuencia = s + 1;
+		VarHandle.storeStoreFence();
+		copiar(0, gc.getC11(), conVias);
+		copiar(1, gc.getC12(), conVias);
+		copiar(2, gc.getC21(), conVias);
+		copiar(3, gc.getC22(), conVias);
+		inicioFase = gc.getInicioFase();
+		ultimaDecision = gc.getUltimaDecision();
+		planFijo = gc.isEnPlanFijo();
+		degradado = gc.isDegradado();
+		secuencia = s + 2;
+	}
+
+	private void copiar(int k, Calle c, boolean conVias) {
+		modos[2 * k] = c.SC.getModo();
+		modos[2 * k + 1] = c.SG.getModo();
+		peatones[k] = c.SP.getModo();
+		if (!conVias)
+			return;
+		int m = Math.min(c.numVias(), VIAS);
+		numVias[k] = m;
+		for (int v = 0; v < m; v++)
+			vias[k * VIAS + v] = c.via(v);
+	}
+
+	public long getVersion() {
+		return secuencia >>> 1;
+	}
+
+	/*
+	 * Copia el estado a v. Devuelve false si no se ha publicado nada todavia
+	 */
+	public boolean leer(Vista v) {
+		while (true) {
+			long s = secuencia;
+			if (s == 0)
+				return false;
+			if ((s & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			System.arraycopy(modos, 0, v.modos, 0, modos.length);
+			System.arraycopy(peatones, 0, v.peatones, 0, peatones.length);
+			System.arraycopy(numVias, 0, v.numVias, 0, numVias.length);
+			System.arraycopy(vias, 0, v.vias, 0, vias.length);
+			v.inicioFase = inicioFase;
+			v.ultimaDecision = ultimaDecision;
+			v.planFijo = planFijo;
+			v.degradado = degradado;
+			VarHandle.acquireFence();
+			if (secuencia == s) {
+				v.version = s >>> 1;
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package principal;
+
+/*
+ * Suaviza los conteos de cada via de un cruce para que una sola lectura erronea no provoque un
+ * cambioLuz() o encienda el giro. Por cada via guarda las ultimas lecturas en un anillo de enteros
+ * y actualiza en O(1) la media movil de la ventana, una media exponencial (EWMA) y su tendencia
+ * (Holt). Todo el estado esta en arrays planos indexados por carril = calle * MAX_VIAS + via.
+ */
+public class EstimadorCola {
+	public static final int CALLES = 4;
+	public static final int MAX_VIAS = 8;
+	private static final int CARRILES = CALLES * MAX_VIAS;
+
+	private final int ventana;
+	private final double alfa; //Peso de la lectura nueva en el nivel
+	private final double beta; //Peso del ultimo cambio de nivel en la tendencia
+	private final int[] anillo;
+	private final int[] pos = new int[CARRILES];
+	private final int[] n = new int[CARRILES];
+	private final long[] suma = new long[CARRILES];
+	private final double[] nivel = new double[CARRILES];
+	private final double[] tendencia = new double[CARRILES];
+	private final int[] vias = new int[CALLES]; //Vias de cada calle en la ultima lectura
+
+	public EstimadorCola(int ventana, double alfa, double beta) {
+		if (ventana <= 0 || alfa <= 0 || alfa > 1 || beta < 0 || beta > 1)
+			throw new IllegalArgumentException("Parametros de suavizado no validos");
+		this.ventana = ventana;
+		this.alfa = alfa;
+		this.beta = beta;
+		this.anillo = new int[CARRILES * ventana];
+	}
+
+	/*
+	 * Anade una lectura de la calle k (0 = c11 ... 3 = c22)
+	 */
+	public void actualizar(int k, Calle c) {
+		int m = Math.min(c.numVias(), MAX_VIAS);
+		vias[k] = m;
+		for (int v = 0; v < m; v++)
+			actualizar(k * MAX_VIAS + v, c.via(v));
+	}
+
+	public void actualizar(int carril, int x) {
+		int base = carril * ventana;
+		if (n[carril] == ventana)
+			suma[carril] -= anillo[base + pos[carril]];
+		else
+			n[carril]++;
+		anillo[base + pos[carril]] = x;
+		suma[carril] += x;
+		pos[carril] = pos[carril] + 1 == ventana ? 0 : pos[carril] + 1;
+
+		if (n[carril] == 1) {
+			nivel[carril] = x;
+			tendencia[carril] = 0;
+		} else {
+			double anterior = nivel[carril];
+			nivel[carril] = alfa * x + (1 - alfa) * (anterior + tendencia[carril]);
+			tendencia[carril] = beta * (nivel[carril] - anterior) + (1 - beta) * tendencia[carril];
+		}
+	}
+
+	public double media(int k, int v) {
+		int carril = k * MAX_VIAS + v;
+		return n[carril] == 0 ? 0 : (double) suma[carril] / n[carril];
+	}
+
+	public double ewma(int k, int v) {
+		return nivel[k * MAX_VIAS + v];
+	}
+
+	public double tendencia(int k, int v) {
+		return tendencia[k * MAX_VIAS + v];
+	}
+
+	/*
+	 * Coches suavizados en la via v de la calle k, redondeados para las reglas
+	 */
+	public int via(int k, int v) {
+		return (int) Math.round(Math.max(0, nivel[k * MAX_VIAS + v]));
+	}
+
+	public int numVias(int k) {
+		return vias[k];
+	}
+
+	public int total(int k) {
+		double t = 0;
+		for (int v = 0; v < vias[k]; v++)
+			t += Math.max(0, nivel[k * MAX_VIAS + v]);
+		return (int) Math.round(t);
+	}
+}
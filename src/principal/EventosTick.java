@@ -0,0 +1,168 @@
+package principal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * Eventos de Java Flight Recorder para cada etapa del tick: lectura de los sensores, analisis de la
+ * respuesta, decision y actuacion. Llevan el cruce y la posicion de la Calle (1 = c11 ... 4 = c22;
+ * en la actuacion 1 = semaforo de circulacion, 2 = de giro) para ver en una grabacion donde se va el
+ * tiempo del tick. La actuacion es el POST en si, asi que con RegistroOrdenes sale en su hilo de
+ * envio y no en el del tick, que solo apunta la orden. Los eventos solo se crean si su tipo esta
+ * activo en alguna grabacion, porque el JIT no siempre elimina el objeto y el tick no debe reservar
+ * memoria cuando no se graba.
+ *
+ * Ejemplo: java -XX:StartFlightRecording=filename=tick.jfr,settings=profile ...
+ *          jfr print --events principal.Lectura tick.jfr
+ */
+public final class EventosTick {
+	private static final EventType LECTURA = EventType.getEventType(Lectura.class);
+	private static final EventType ANALISIS = EventType.getEventType(Analisis.class);
+	private static final EventType DECISION = EventType.getEventType(Decision.class);
+	private static final EventType ACTUACION = EventType.getEventType(Actuacion.class);
+
+	private EventosTick() {
+	}
+
+	/*
+	 * Cada etapa tiene un metodo que empieza el evento (null si su tipo no esta activo) y otro que lo cierra
+	 */
+	static Lectura lectura() {
+		if (!LECTURA.isEnabled())
+			return null;
+		Lectura e = new Lectura();
+		e.begin();
+		return e;
+	}
+
+	static void lectura(Lectura e, int cruce, int calle, boolean correcta) {
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit()) {
+			e.cruce = cruce;
+			e.calle = calle;
+			e.correcta = correcta;
+			e.commit();
+		}
+	}
+
+	static Analisis analisis() {
+		if (!ANALISIS.isEnabled())
+			return null;
+		Analisis e = new Analisis();
+		e.begin();
+		return e;
+	}
+
+	static void analisis(Analisis e, int cruce, int calle, int vias) {
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit()) {
+			e.cruce = cruce;
+			e.calle = calle;
+			e.vias = vias;
+			e.commit();
+		}
+	}
+
+	static Decision decision() {
+		if (!DECISION.isEnabled())
+			return null;
+		Decision e = new Decision();
+		e.begin();
+		return e;
+	}
+
+	static void decision(Decision e, int cruce, int calle, int acciones, PoliticaControl p) {
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit()) {
+			e.cruce = cruce;
+			e.calle = calle;
+			e.acciones = acciones;
+			e.politica = p != null ? p.getClass().getSimpleName() : "reglas";
+			e.commit();
+		}
+	}
+
+	static Actuacion actuacion() {
+		if (!ACTUACION.isEnabled())
+			return null;
+		Actuacion e = new Actuacion();
+		e.begin();
+		return e;
+	}
+
+	static void actuacion(Actuacion e, int cruce, int posicion, int modo) {
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit()) {
+			e.cruce = cruce;
+			e.posicion = posicion;
+			e.modo = modo;
+			e.commit();
+		}
+	}
+
+	@Name("principal.Lectura")
+	@Label("Lectura de sensores")
+	@Category({ "Semaforos", "Tick" })
+	@StackTrace(false)
+	public static class Lectura extends Event {
+		@Label("Cruce")
+		int cruce;
+		@Label("Calle")
+		int calle; //0 si se leen las cuatro a la vez de una FuenteDatos
+		@Label("Correcta")
+		boolean correcta;
+	}
+
+	@Name("principal.Analisis")
+	@Label("Analisis de la respuesta")
+	@Category({ "Semaforos", "Tick" })
+	@StackTrace(false)
+	public static class Analisis extends Event {
+		@Label("Cruce")
+		int cruce;
+		@Label("Calle")
+		int calle;
+		@Label("Vias")
+		int vias;
+	}
+
+	@Name("principal.Decision")
+	@Label("Decision")
+	@Category({ "Semaforos", "Tick" })
+	@StackTrace(false)
+	public static class Decision extends Event {
+		@Label("Cruce")
+		int cruce;
+		@Label("Calle")
+		int calle; //Primera calle de las que estan en rojo
+		@Label("Acciones")
+		int acciones;
+		@Label("Politica")
+		String politica;
+	}
+
+	@Name("principal.Actuacion")
+	@Label("Actuacion")
+	@Category({ "Semaforos", "Tick" })
+	@StackTrace(false)
+	public static class Actuacion extends Event {
+		@Label("Cruce")
+		int cruce;
+		@Label("Posicion")
+		int posicion;
+		@Label("Modo")
+		int modo;
+	}
+}
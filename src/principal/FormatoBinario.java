@@ -0,0 +1,194 @@
+package principal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Formato binario compacto, alternativo al JSON, para lecturas y ordenes. Se negocia por HTTP: el
+ * cliente pide TIPO en Accept y el servidor contesta con ese Content-Type si lo sabe servir.
+ *
+ *   Lectura: varint longitud, y en esos bytes un grupo por calle: varint vias, varint coches de cada via.
+ *            Las lecturas de las cuatro calles llevan cuatro grupos, la de getDatos uno. Longitud 0 = latido.
+ *   Orden:   2 bytes, modo y posicion.
+ *
+ * Varint sin signo de 7 bits por byte (como en AlmacenConteos): un conteo de menos de 128 coches es un byte.
+ */
+public final class FormatoBinario {
+	public static final String TIPO = "application/x-semaforo";
+	//Cabecera de longitud mas cuatro grupos completos con conteos de hasta 5 bytes
+	public static final int MAX_LECTURA = 5 + 4 * (1 + EstimadorCola.MAX_VIAS * 5);
+	private static final byte[][] ORDENES = new byte[256][];
+	static {
+		for (int i = 0; i < 256; i++)
+			ORDENES[i] = new byte[] { (byte) (i >> 4), (byte) (i & 0xF) };
+	}
+
+	private FormatoBinario() {
+	}
+
+	/*
+	 * Orden de 2 bytes; para modos y posiciones de 0 a 15 se devuelve siempre el mismo array
+	 */
+	public static byte[] orden(int modo, int posicion) {
+		if (modo >= 0 && modo < 16 && posicion >= 0 && posicion < 16)
+			return ORDENES[modo << 4 | posicion];
+		return new byte[] { (byte) modo, (byte) posicion };
+	}
+
+	public static int modo(byte[] orden) {
+		return orden[0] & 0xFF;
+	}
+
+	public static int posicion(byte[] orden) {
+		return orden[1] & 0xFF;
+	}
+
+	/*
+	 * Escribe una lectura de n calles en destino desde pos; devuelve la posicion siguiente
+	 */
+	public static int escribirLectura(byte[] destino, int pos, int[][] vias, int[] numVias, int n) {
+		int largo = 0;
+		for (int k = 0; k < n; k++) {
+			largo += tamVarint(numVias[k]);
+			for (int v = 0; v < numVias[k]; v++)
+				largo += tamVarint(vias[k][v]);
+		}
+		pos = escribirVarint(destino, pos, largo);
+		for (int k = 0; k < n; k++) {
+			pos = escribirVarint(destino, pos, numVias[k]);
+			for (int v = 0; v < numVias[k]; v++)
+				pos = escribirVarint(destino, pos, vias[k][v]);
+		}
+		return pos;
+	}
+
+	static int escribirVarint(byte[] b, int pos, int v) {
+		while ((v & ~0x7F) != 0) {
+			b[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		b[pos++] = (byte) v;
+		return pos;
+	}
+
+	private static int tamVarint(int v) {
+		int n = 1;
+		while ((v & ~0x7F) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/*
+	 * Lee una lectura de un flujo con d. Devuelve las calles leidas (0 si era un latido) o -1 si el
+	 * flujo acaba entre dos lecturas
+	 */
+	public static int leerLectura(InputStream in, Decodificador d) throws IOException {
+		boolean empezada = false;
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				if (!empezada)
+					return -1;
+				throw new IOException("Lectura binaria cortada");
+			}
+			empezada = true;
+			if (!d.anadir((byte) b))
+				throw new IOException("Lectura binaria no valida");
+			if (d.completa())
+				return d.getCalles();
+		}
+	}
+
+	/*
+	 * Decodifica lecturas byte a byte, para los clientes que reciben los datos a trozos. Con cada
+	 * lectura completa completa() pasa a true hasta el siguiente byte
+	 */
+	public static class Decodificador {
+		private final int[][] vias;
+		private final int[] numVias;
+		private int restante = -1; //Bytes que faltan de la lectura, -1 leyendo la longitud
+		private int valor;
+		private int desp;
+		private int calles;
+		private int via = -1; //-1 leyendo el numero de vias de la calle
+		private boolean completa;
+
+		public Decodificador(int[][] vias, int[] numVias) {
+			this.vias = vias;
+			this.numVias = numVias;
+		}
+
+		/*
+		 * Devuelve false si los datos no son validos; entonces hay que descartar la conexion
+		 */
+		public boolean anadir(byte b) {
+			completa = false;
+			if (desp >= 35)
+				return false;
+			valor |= (b & 0x7F) << desp;
+			if (restante > 0)
+				restante--;
+			if ((b & 0x80) != 0) {
+				desp += 7;
+				return restante != 0;
+			}
+			int v = valor;
+			valor = 0;
+			desp = 0;
+			if (restante < 0) {
+				calles = 0;
+				via = -1;
+				//Con 5 bytes el varint puede salir negativo
+				if (v < 0 || v > MAX_LECTURA)
+					return false;
+				if (v == 0)
+					completa = true; //Latido
+				else
+					restante = v;
+				return true;
+			}
+			if (via < 0) {
+				if (calles == 4 || v < 0 || v > EstimadorCola.MAX_VIAS)
+					return false;
+				numVias[calles] = v;
+				via = 0;
+			} else {
+				vias[calles][via++] = v;
+			}
+			if (via == numVias[calles]) {
+				calles++;
+				via = -1;
+			}
+			if (restante == 0) {
+				if (via >= 0)
+					return false;
+				restante = -1;
+				completa = true;
+			}
+			return true;
+		}
+
+		/*
+		 * Descarta una lectura a medias, p.ej. al abrir otra conexion
+		 */
+		public void reiniciar() {
+			restante = -1;
+			valor = 0;
+			desp = 0;
+			completa = false;
+		}
+
+		public boolean completa() {
+			return completa;
+		}
+
+		/*
+		 * Calles de la ultima lectura completa; 0 si fue un latido
+		 */
+		public int getCalles() {
+			return calles;
+		}
+	}
+}
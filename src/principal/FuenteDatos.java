@@ -0,0 +1,10 @@
+package principal;
+
+import java.io.IOException;
+
+/*
+ * Origen de los conteos de las cuatro calles cuando no se leen directamente de ConexionExterna
+ */
+public interface FuenteDatos {
+	void leer(Calle c11, Calle c12, Calle c21, Calle c22) throws IOException;
+}
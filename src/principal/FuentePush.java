@@ -0,0 +1,210 @@
+package principal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Lecturas empujadas por los sensores en lugar de pedirlas cada segundo. Un hilo mantiene abierta
+ * una conexion a la url y lee el flujo linea a linea; vale tanto server-sent events como un HTTP
+ * chunked con una lectura por linea:
+ *
+ *   data: [[3,5],[2],[4,1],[0]]      vias de c11, c12, c21, c22
+ *   [[3,5],[2],[4,1],[0]]            lo mismo sin el prefijo de SSE
+ *   :                                latido (comentario SSE) cuando el trafico no cambia
+ *
+ * Cada lectura nueva lanza un tick() del cruce en el momento, sin esperar al temporizador. El tick
+ * periodico de algoritmo() sigue para las reglas que dependen del tiempo, pero leer() solo copia la
+ * ultima lectura recibida, sin ir a la red. Mientras la conexion siga viva (datos o latidos en
+ * maxSilencio ms) esa lectura vale; si no, leer() falla y el cruce acaba pasando a su PlanFijo.
+ *
+ * Con binario se pide ademas FormatoBinario; si el servidor lo acepta el flujo son lecturas
+ * binarias seguidas y los latidos lecturas de longitud 0.
+ */
+public class FuentePush implements FuenteDatos {
+	private static final int ESPERA_MAX = 30000; //ms entre reintentos de conexion
+
+	private final String url;
+	private final int maxSilencio;
+	private final boolean binario;
+	private final int[][] vias = new int[4][EstimadorCola.MAX_VIAS];
+	private final int[] numVias = new int[4];
+	private final int[][] entrante = new int[4][EstimadorCola.MAX_VIAS]; //Solo la usa el hilo lector
+	private final int[] numEntrante = new int[4];
+	private final FormatoBinario.Decodificador decodificador = new FormatoBinario.Decodificador(entrante, numEntrante);
+	private volatile long ultimoDato; //System.nanoTime() de la ultima linea recibida, datos o latido
+	private volatile boolean conectada;
+	private volatile boolean parada;
+	private long lecturas;
+	private Thread hilo;
+
+	/*
+	 * maxSilencio: ms sin datos ni latidos tras los que se da la conexion por muerta
+	 */
+	public FuentePush(String url, int maxSilencio) {
+		this(url, maxSilencio, false);
+	}
+
+	public FuentePush(String url, int maxSilencio, boolean binario) {
+		this.url = url;
+		this.maxSilencio = maxSilencio;
+		this.binario = binario;
+	}
+
+	/*
+	 * Empieza a leer el flujo en su propio hilo y a lanzar ticks de gc con cada lectura
+	 */
+	public synchronized void conectar(final GestionCruce gc) {
+		hilo = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				recibir(gc);
+			}
+		}, "push-" + gc.getId());
+		hilo.setDaemon(true);
+		hilo.start();
+	}
+
+	public synchronized void parar() {
+		parada = true;
+		if (hilo != null)
+			hilo.interrupt();
+	}
+
+	private void recibir(GestionCruce gc) {
+		int espera = 1000;
+		while (!parada) {
+			try {
+				HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+				con.setConnectTimeout(maxSilencio);
+				con.setReadTimeout(maxSilencio); //Un flujo sin latidos se corta aqui
+				con.setRequestProperty("Accept", binario ? FormatoBinario.TIPO + ", text/event-stream;q=0.5" : "text/event-stream");
+				String tipo = con.getContentType(); //Aqui se conecta; si falla salta la excepcion
+				espera = 1000;
+				if (tipo != null && tipo.startsWith(FormatoBinario.TIPO))
+					recibirBinario(con, gc);
+				else
+					recibirTexto(con, gc);
+			} catch (IOException e) {
+				System.out.println("Flujo " + url + " cortado: " + e.getMessage());
+			} finally {
+				conectada = false;
+			}
+			if (parada)
+				return;
+			try {
+				Thread.sleep(espera);
+			} catch (InterruptedException e) {
+				return;
+			}
+			espera = Math.min(2 * espera, ESPERA_MAX);
+		}
+	}
+
+	private void recibirTexto(HttpURLConnection con, GestionCruce gc) throws IOException {
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
+			conectada = true;
+			String linea;
+			while (!parada && (linea = in.readLine()) != null) {
+				ultimoDato = System.nanoTime();
+				if (linea.startsWith("data:"))
+					linea = linea.substring(5);
+				else if (linea.isEmpty() || linea.startsWith(":") || linea.indexOf(':') >= 0)
+					continue; //Latido, separador u otro campo de SSE (id:, event:, retry:)
+				if (analizar(linea)) {
+					publicar();
+					gc.tickSeguro();
+				}
+			}
+		}
+	}
+
+	private void recibirBinario(HttpURLConnection con, GestionCruce gc) throws IOException {
+		try (BufferedInputStream in = new BufferedInputStream(con.getInputStream())) {
+			conectada = true;
+			int calles;
+			while (!parada && (calles = FormatoBinario.leerLectura(in, decodificador)) >= 0) {
+				ultimoDato = System.nanoTime();
+				if (calles == 4) {
+					publicar();
+					gc.tickSeguro();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Lee [[a,b],[c],[d,e],[f]] a los arrays de entrada sin crear objetos. Devuelve false si la linea no vale
+	 */
+	private boolean analizar(String linea) {
+		int calle = -1;
+		int nivel = 0;
+		int valor = -1;
+		for (int i = 0; i < linea.length(); i++) {
+			char ch = linea.charAt(i);
+			if (ch >= '0' && ch <= '9') {
+				if (nivel != 2)
+					return false;
+				valor = (valor < 0 ? 0 : valor * 10) + (ch - '0');
+			} else if (ch == '[') {
+				if (++nivel == 2) {
+					if (++calle == 4)
+						return false;
+					numEntrante[calle] = 0;
+				}
+			} else if (ch == ',' || ch == ']') {
+				if (valor >= 0) {
+					if (numEntrante[calle] == EstimadorCola.MAX_VIAS)
+						return false;
+					entrante[calle][numEntrante[calle]++] = valor;
+					valor = -1;
+				}
+				if (ch == ']')
+					nivel--;
+			} else if (ch != ' ') {
+				return false;
+			}
+		}
+		return calle == 3 && nivel == 0;
+	}
+
+	private synchronized void publicar() {
+		for (int k = 0; k < 4; k++) {
+			System.arraycopy(entrante[k], 0, vias[k], 0, numEntrante[k]);
+			numVias[k] = numEntrante[k];
+		}
+		lecturas++;
+	}
+
+	/*
+	 * Copia la ultima lectura recibida. Falla si no hay conexion o lleva demasiado en silencio
+	 */
+	@Override
+	public synchronized void leer(Calle c11, Calle c12, Calle c21, Calle c22) throws IOException {
+		if (lecturas == 0 || !conectada || System.nanoTime() - ultimoDato > maxSilencio * 1000000L)
+			throw new IOException("Sin datos recientes de " + url);
+		copiar(0, c11);
+		copiar(1, c12);
+		copiar(2, c21);
+		copiar(3, c22);
+	}
+
+	private void copiar(int k, Calle c) {
+		c.reset();
+		for (int v = 0; v < numVias[k]; v++)
+			c.add(vias[k][v]);
+	}
+
+	public synchronized long getLecturas() {
+		return lecturas;
+	}
+
+	public boolean isConectada() {
+		return conectada;
+	}
+}
@@ -1,21 +1,80 @@
 package principal;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class GestionCruce {
-	private boolean in =false;
+	//Acciones que puede devolver una politica de control
+	public static final int MANTENER = 0;
+	public static final int CAMBIO = 1;
+	public static final int GIRO_ON = 2;
+	public static final int GIRO_OFF = 4;
+	//Atiende las peticiones de prioridad fuera del hilo del detector, porque cambioLuz() duerme durante el ambar
+	private static final ExecutorService PRIORIDADES = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "prioridad");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 	private Calle c11;
 	private Calle c12;
 	private Calle c21;
 	private Calle c22;
-	private int maxA; //Tiempo en amarillo
-	private int maxR; //Tiempo en rojo hasta que el contrario se pone en verde
 	private int rojo1=0; //tiempo de calle 1 en rojo
 	private int rojo2=0; //tiempo de calle 2 en rojo
-	private ConexionExterna conexionExt = new ConexionExterna();
+	private final AtomicReference<Umbrales> umbrales = new AtomicReference<Umbrales>(Umbrales.POR_DEFECTO);
+	private final Object cerrojoUmbrales = new Object(); //Cambios de maxA y maxR frente a setPeatones()
+	private volatile long inicioVerde=-1; //Inicio de verde sugerido por el coordinador del corredor (ms), -1 si no hay
+	private volatile int bandaVerde; //Segundos que se mantiene ese verde
+	private long finOnda; //Instante (ms) hasta el que se mantiene el verde de la onda; solo lo toca el tick
+	private volatile int prioridadLado; //Eje con prioridad: 1 = c11 y c12, 2 = c21 y c22, 0 si no hay
+	private volatile long prioridadHasta; //Instante (ms) en que vence la prioridad
+	private volatile long prioridadEvento; //System.nanoTime() de la peticion aun sin atender, 0 si no hay
+	private volatile long latenciaPrioridad = -1; //ns de la ultima peticion a su atencion
+	private volatile int destinoCambio; //Eje al que va el cambioLuz() en curso, 0 si no hay ninguno
+	private long finRestauracion = -1; //Hasta cuando (ms) sigue en rojo un cambio restaurado a medias, -1 si no hay
+	private final Runnable atender = new Runnable() {
+		@Override
+		public void run() {
+			atenderPrioridad();
+		}
+	};
+	private final Object cerrojoLectura = new Object(); //Las lecturas no toman el cerrojo del cruce
+	private final ConexionExterna conexionExt;
+	private final FuenteDatos fuente; //Si es null se leen los datos de conexionExt
+	private final Reloj reloj;
+	private DetectorAnomalias detector; //Si no es null corrige las lecturas sospechosas antes de decidir
+	private EstimadorCola estimador; //Si es null las reglas usan la lectura tal cual
+	private PronosticoColas pronostico; //Si no es null se actualiza con cada lectura
+	private int huecoPronostico;
+	private volatile long inicioFase; //Instante (ms) en que empezo la fase actual
+	private PlanFijo planFijo; //Si no es null se sigue cuando los datos caducan
+	private volatile long ultimaLectura; //Instante (ms) de la ultima lectura valida
+	private volatile boolean enPlanFijo;
+	private volatile boolean lecturaIncompleta; //La ultima lectura fallo o le falta alguna calle
+	private Metricas metricas; //Si no es null se anotan latencias y contadores
+	private VigilanteTick vigilante; //Si no es null mide cada tick
+	private int huecoVigilante;
+	//ns que cambioLuz() ha pasado esperando ambar y despeje, y desde cuando espera ahora (0 si no espera).
+	//Solo los escribe cambioLuz(), con el cerrojo del cruce; el vigilante los descuenta de cada tick
+	private volatile long esperado;
+	private volatile long esperandoDesde;
+	private volatile boolean degradado; //Lo activa el vigilante: se decide solo con las reglas
+	private RegistroOrdenes ordenes; //Si no es null las ordenes se apuntan y las envia su hilo; si no, se envian desde el tick
+	private int huecoOrdenes;
+	private LlamadasPeaton peatones; //Si no es null se atienden los pulsadores de peatones en cada decision
+	private int ultimaDecision = -1; //Decision del ultimo tick, -1 si no se evaluaron las reglas
+	private PoliticaControl politica; //Si es null se decide solo con las reglas
+	private final EstadoCruce estado = new EstadoCruce(); //Lo publica cada tick para lectores de otros hilos
+	private final int id;
+	private final Diario diario;
 	public Calle getC11() {
 		return c11;
 	}
@@ -41,20 +100,354 @@ public class GestionCruce {
 		this.c22 = c22;
 	}
 	public int getMaxA() {
-		return maxA;
+		return umbrales.get().getMaxA();
+	}
+	public void setMaxA(final int maxA) {
+		synchronized (cerrojoUmbrales) {
+			umbrales.updateAndGet(u -> comprobarUmbrales(u.conMaxA(maxA)));
+		}
+	}
+	public int getMaxR() {
+		return umbrales.get().getMaxR();
+	}
+	public void setMaxR(final int maxR) {
+		synchronized (cerrojoUmbrales) {
+			umbrales.updateAndGet(u -> comprobarUmbrales(u.conMaxR(maxR)));
+		}
+	}
+	public void setUmbralCola(final int umbralCola) {
+		umbrales.updateAndGet(u -> u.conUmbralCola(umbralCola));
+	}
+	public void setUmbralGiro(final int umbralGiro) {
+		umbrales.updateAndGet(u -> u.conUmbralGiro(umbralGiro));
+	}
+	public void setUmbralGiroTotal(final int umbralGiroTotal) {
+		umbrales.updateAndGet(u -> u.conUmbralGiroTotal(umbralGiroTotal));
+	}
+	public void setMinRojo(final int minRojo) {
+		umbrales.updateAndGet(u -> u.conMinRojo(minRojo));
+	}
+	public void setMaxRojo(final int maxRojo) {
+		umbrales.updateAndGet(u -> u.conMaxRojo(maxRojo));
+	}
+	public Umbrales getUmbrales() {
+		return umbrales.get();
+	}
+	/*
+	 * Sustituye todos los umbrales de golpe; el tick usa la version nueva a partir de su siguiente pasada.
+	 * Con peatones lanza IllegalArgumentException si maxA + maxR no cubren su despeje
+	 */
+	public void setUmbrales(Umbrales nuevos) {
+		synchronized (cerrojoUmbrales) {
+			umbrales.set(comprobarUmbrales(nuevos));
+		}
+	}
+	/*
+	 * Devuelve u si vale para este cruce; si no lanza IllegalArgumentException
+	 */
+	public Umbrales comprobarUmbrales(Umbrales u) {
+		comprobarDespeje(peatones, u);
+		return u;
+	}
+	private static void comprobarDespeje(LlamadasPeaton peatones, Umbrales u) {
+		if (peatones != null && peatones.getDespeje() > u.getMaxA() + u.getMaxR())
+			throw new IllegalArgumentException("Despeje de " + peatones.getDespeje() + " s mayor que ambar y rojo ("
+					+ (u.getMaxA() + u.getMaxR()) + " s)");
+	}
+	public DetectorAnomalias getDetector() {
+		return detector;
+	}
+	public void setDetector(DetectorAnomalias detector) {
+		this.detector = detector;
+	}
+	public EstimadorCola getEstimador() {
+		return estimador;
+	}
+	/*
+	 * Con un estimador las reglas deciden sobre los conteos suavizados en lugar de la ultima lectura
+	 */
+	public void setEstimador(EstimadorCola estimador) {
+		this.estimador = estimador;
+	}
+	/*
+	 * Reserva un hueco en el pronostico (compartido entre cruces) y lo alimenta con cada lectura
+	 */
+	public void setPronostico(PronosticoColas pronostico) {
+		this.huecoPronostico = pronostico.reservar();
+		this.pronostico = pronostico;
+	}
+	/*
+	 * Coches previstos en la calle k (0 = c11 ... 3 = c22) dentro de h ticks, o -1 si no hay pronostico o lecturas
+	 */
+	public float prevision(int k, int h) {
+		PronosticoColas p = pronostico;
+		return p == null ? -1 : p.preverCalle(huecoPronostico, k, h);
+	}
+	public PlanFijo getPlanFijo() {
+		return planFijo;
+	}
+	/*
+	 * Plan al que se pasa si no llegan lecturas validas en planFijo.getMaxEdad() ms; null para seguir siempre adaptativo
+	 */
+	public void setPlanFijo(PlanFijo planFijo) {
+		this.planFijo = planFijo;
+	}
+	public boolean isEnPlanFijo() {
+		return enPlanFijo;
+	}
+	public long getUltimaLectura() {
+		return ultimaLectura;
+	}
+	/*
+	 * Reserva un hueco en el vigilante (compartido entre cruces) y le pasa el inicio y fin de cada tick
+	 */
+	public void setVigilante(VigilanteTick vigilante) {
+		this.huecoVigilante = vigilante.reservar(this);
+		this.vigilante = vigilante;
+	}
+	/*
+	 * Reserva un hueco en el registro de ordenes (compartido entre cruces); desde aqui el tick ya no espera a los POST
+	 */
+	public void setOrdenes(RegistroOrdenes ordenes) {
+		this.huecoOrdenes = ordenes.reservar(this);
+		this.ordenes = ordenes;
+	}
+	public RegistroOrdenes getOrdenes() {
+		return ordenes;
+	}
+	/*
+	 * Activa los pasos de peatones, todos en rojo. Una prioridad hace el despeje de los pasos durante
+	 * el ambar y el rojo del cambio, asi que despeje no puede pasar de maxA + maxR
+	 */
+	public synchronized void setPeatones(LlamadasPeaton peatones) {
+		synchronized (cerrojoUmbrales) {
+			comprobarDespeje(peatones, umbrales.get());
+			for (int k = 0; k < 4; k++)
+				calle(k).SP.setModo(4);
+			this.peatones = peatones;
+		}
+	}
+	public LlamadasPeaton getPeatones() {
+		return peatones;
+	}
+	/*
+	 * Pulsador de peatones de la calle en la posicion calle (1 a 4). Vale desde cualquier hilo y no
+	 * bloquea: la llamada se atiende en la decision del siguiente tick
+	 */
+	public void pulsarPeaton(int calle) {
+		LlamadasPeaton lp = peatones;
+		if (lp == null)
+			throw new IllegalStateException("Cruce " + id + " sin pasos de peatones");
+		lp.pulsar(calle, reloj.ahora());
+	}
+	public void setMetricas(Metricas metricas) {
+		this.metricas = metricas;
+	}
+	public boolean isDegradado() {
+		return degradado;
+	}
+	void degradar(boolean degradado) {
+		if (degradado != this.degradado)
+			System.out.println("Cruce " + id + (degradado ? ": ticks fuera de plazo, modo degradado" : ": modo normal"));
+		this.degradado = degradado;
+	}
+	public EstadoCruce getEstado() {
+		return estado;
+	}
+	public int getId() {
+		return id;
+	}
+	public int getRojo1() {
+		return rojo1;
+	}
+	public int getRojo2() {
+		return rojo2;
+	}
+	public PoliticaControl getPolitica() {
+		return politica;
+	}
+	public void setPolitica(PoliticaControl politica) {
+		this.politica = politica;
+	}
+	public void sugerirInicioVerde(long instante) {
+		sugerirInicioVerde(instante, 0);
+	}
+
+	/*
+	 * Lo llama el CoordinadorCorredor desde su propio hilo; el tick lo recoge en su siguiente pasada.
+	 * El verde de la calle 1 empieza en instante y se mantiene banda s
+	 */
+	public void sugerirInicioVerde(long instante, int banda) {
+		bandaVerde = banda;
+		inicioVerde = instante;
+	}
+
+	/*
+	 * Prioridad para un vehiculo de emergencia o de transporte publico detectado en la calle de la
+	 * posicion calle (1 a 4): su eje pasa a verde en cuanto se pueda y lo mantiene duracion ms. No
+	 * espera al tick ni bloquea al que llama. La transicion es la de siempre, con su ambar y su
+	 * rojo de despeje; lo que se salta es el minimo de rojo y la decision. Si el cambio en curso va
+	 * al otro eje hay que dejarlo acabar antes de volver
+	 */
+	public void prioridad(int calle, int duracion) {
+		pedirPrioridad(calle, duracion);
+		PRIORIDADES.execute(atender);
+	}
+
+	/*
+	 * Apunta la peticion, tambien en el diario, sin atenderla. El Reproductor la atiende luego en su hilo
+	 */
+	void pedirPrioridad(int calle, int duracion) {
+		if (calle < 1 || calle > 4 || duracion <= 0)
+			throw new IllegalArgumentException("Prioridad no valida: calle " + calle + ", duracion " + duracion);
+		long t0 = System.nanoTime();
+		long ahora = reloj.ahora();
+		if (diario != null) {
+			try {
+				diario.prioridad(ahora, id, calle, duracion);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		prioridadHasta = ahora + duracion;
+		prioridadLado = calle <= 2 ? 1 : 2;
+		prioridadEvento = t0;
 	}
-	public void setMaxA(int maxA) {
-		this.maxA = maxA;
+
+	void atenderPrioridad() {
+		int lado = prioridadLado;
+		if (lado == 0)
+			return;
+		if (destinoCambio == lado) {
+			prioridadAtendida(); //Ya va hacia ese eje
+			return;
+		}
+		synchronized (this) {
+			if (!prioridadActiva())
+				return;
+			if (ladoVerde() == lado)
+				prioridadAtendida();
+			else
+				cambioLuz();
+		}
+	}
+
+	/*
+	 * Anota la latencia de la peticion pendiente, si la hay
+	 */
+	private void prioridadAtendida() {
+		long t0 = prioridadEvento;
+		if (t0 == 0)
+			return;
+		prioridadEvento = 0;
+		long ns = System.nanoTime() - t0;
+		latenciaPrioridad = ns;
+		Metricas m = metricas;
+		if (m != null) {
+			m.prioridad.anotar(ns);
+			m.prioridades.increment();
+		}
+	}
+
+	private boolean prioridadActiva() {
+		int lado = prioridadLado;
+		if (lado == 0)
+			return false;
+		if (reloj.ahora() < prioridadHasta)
+			return true;
+		prioridadLado = 0;
+		prioridadEvento = 0;
+		System.out.println("Cruce " + id + ": fin de la prioridad del eje " + lado);
+		return false;
+	}
+
+	/*
+	 * Calle por indice: 0 = c11, 1 = c12, 2 = c21, 3 = c22
+	 */
+	Calle calle(int k) {
+		switch (k) {
+			case 0:
+				return c11;
+			case 1:
+				return c12;
+			case 2:
+				return c21;
+			default:
+				return c22;
+		}
+	}
+
+	/*
+	 * Cambia el semaforo del paso de peatones de la calle k y lo envia si tiene posicion
+	 */
+	void luzPeaton(int k, int modo) {
+		calle(k).SP.setModo(modo);
+		int posicion = peatones.posicion(k);
+		if (posicion > 0)
+			actuar(modo, posicion);
+	}
+
+	/*
+	 * Eje en verde: 1 = c11 y c12, 2 = c21 y c22, 0 si ninguno
+	 */
+	private int ladoVerde() {
+		return c11.SC.getModo() == 1 ? 1 : c21.SC.getModo() == 1 ? 2 : 0;
+	}
+
+	public int getPrioridad() {
+		return prioridadLado;
+	}
+
+	int getDestinoCambio() {
+		return destinoCambio;
+	}
+
+	/*
+	 * ns de la ultima peticion de prioridad hasta que empezo su transicion (o se vio que no hacia falta), -1 si no hubo
+	 */
+	public long getLatenciaPrioridad() {
+		return latenciaPrioridad;
 	}
 
 	public GestionCruce(){
+		this(0, null);
+	}
+
+	/*
+	 * id identifica el cruce en el diario; diario puede ser null si no se quiere registrar nada
+	 */
+	public GestionCruce(int id, Diario diario){
+		this(id, diario, null);
+	}
+
+	/*
+	 * Si puntoControl tiene un estado guardado de este cruce se sigue desde el en lugar de elegir fase de nuevo
+	 */
+	public GestionCruce(int id, Diario diario, PuntoControl puntoControl){
+		this(id, diario, new ConexionExterna(), null, new RelojSistema());
+		//Restaurar no necesita lecturas; solo se espera a los sensores para elegir fase de nuevo
+		if (puntoControl == null || !puntoControl.restaurar(this)) {
+			calles();
+			elegirFase();
+		}
+		timer();
+		algoritmo();
+	}
+
+	/*
+	 * Crea el cruce sin arrancar los temporizadores, para moverlo a mano con tick() (por ejemplo al reproducir un diario)
+	 */
+	public GestionCruce(int id, Diario diario, ConexionExterna conexion, FuenteDatos fuente, Reloj reloj){
+		this.id = id;
+		this.diario = diario;
+		this.conexionExt = conexion;
+		this.fuente = fuente;
+		this.reloj = reloj;
 		c11 = new Calle(1);
 		c12 = new Calle(2);
 		c21 = new Calle(3);
 		c22 = new Calle(4);
-		calles();
-		timer();
-		iniciar();
+		ultimaLectura = reloj.ahora();
 	}
 
 	public static void esperar(int segundos){
@@ -65,44 +458,92 @@ public class GestionCruce {
 		}
 	}
 
-	public void cambioLuz(){
-		in=true;
+	public synchronized void cambioLuz(){
+		Umbrales u = umbrales.get();
+		LlamadasPeaton lp = peatones;
+		if (lp != null)
+			lp.cortarPasos(this);
 		if(c11.SC.getModo() == 1) {
+			destinoCambio = 2;
 			c11.SC.setModo(2);
-			conexionExt.postDatos(2, 1);
+			actuar(2, 1);
 			c12.SC.setModo(2);
-			esperar(maxA);
+			inicioTransicion();
+			esperarCambio(u.getMaxA());
 			c11.SC.setModo(4);
-			conexionExt.postDatos(4, 1);
+			actuar(4, 1);
 			c12.SC.setModo(4);
-			esperar(maxR);
+			esperarCambio(u.getMaxR());
 			c21.SC.setModo(1);
 			c22.SC.setModo(1);
 		}
 		else {
+			destinoCambio = 1;
 			c21.SC.setModo(2);
 			c22.SC.setModo(2);
-			esperar(maxA);
+			inicioTransicion();
+			esperarCambio(u.getMaxA());
 			c21.SC.setModo(4);
 			c22.SC.setModo(4);
-			esperar(maxR);
+			esperarCambio(u.getMaxR());
 			c11.SC.setModo(1);
-			conexionExt.postDatos(1, 1);
+			actuar(1, 1);
 			c12.SC.setModo(1);
 		}
-		notifyAll();
 		rojo1=0;
 		rojo2=0;
+		inicioFase = reloj.ahora();
+		destinoCambio = 0;
+		finRestauracion = -1; //Un cambio completo deja atras el que quedara a medias
+		if (lp != null)
+			lp.cerrarPasos(this);
+		Metricas m = metricas;
+		if (m != null)
+			m.cambiosFase.increment();
+		estado.publicarModos(this);
+	}
+
+	/*
+	 * Espera del cambio de fase, apuntada para que el vigilante no la cuente como tick lento
+	 */
+	private void esperarCambio(int segundos) {
+		long t0 = System.nanoTime();
+		esperandoDesde = t0;
+		try {
+			reloj.esperar(segundos);
+		} finally {
+			esperandoDesde = 0;
+			esperado += System.nanoTime() - t0;
+		}
+	}
+
+	/*
+	 * ns esperados en cambios de fase hasta ahora, incluida la espera en curso
+	 */
+	long esperado(long ahora) {
+		long desde = esperandoDesde;
+		return esperado + (desde != 0 ? ahora - desde : 0);
+	}
+
+	/*
+	 * El ambar ya esta puesto: se publica y, si el cambio atiende una prioridad, cuenta como atendida
+	 */
+	private void inicioTransicion() {
+		if (prioridadEvento != 0 && destinoCambio == prioridadLado)
+			prioridadAtendida();
+		estado.publicarModos(this);
 	}
 
 	public void luzGiro(int pos){
 		switch(pos){
 		case 1:
+			contarGiro(c11, 2);
 			c11.SG.setModo(2);
-			conexionExt.postDatos(2, 2);
+			actuar(2, 2);
 			c12.SG.setModo(2);
 			break;
 		case 2:
+			contarGiro(c21, 2);
 			c21.SG.setModo(2);
 			c22.SG.setModo(2);
 			break;
@@ -111,98 +552,553 @@ public class GestionCruce {
 	public void luzGiroOff(int pos){
 		switch(pos){
 		case 1:
+			contarGiro(c11, 4);
 			c11.SG.setModo(4);
-			conexionExt.postDatos(4, 2);
+			actuar(4, 2);
 			c12.SG.setModo(4);
 			break;
 		case 2:
+			contarGiro(c21, 4);
 			c21.SG.setModo(4);
 			c22.SG.setModo(4);
 			break;
 		}
 	}
 
+	/*
+	 * Cuenta el encendido o apagado solo si el giro de la calle c cambia de verdad a modo: las reglas
+	 * piden GIRO_ON o GIRO_OFF en cada tick mientras se cumple su condicion
+	 */
+	private void contarGiro(Calle c, int modo) {
+		Metricas m = metricas;
+		if (m != null && c.SG.getModo() != modo)
+			m.giros.increment();
+	}
+
 	public void iniciar(){
+		elegirFase();
+		algoritmo();
+	}
+	/*
+	 * Da verde a la calle con mas coches
+	 */
+	public void elegirFase(){
+		inicioFase = reloj.ahora();
 		if((c21.totalCoches()+c22.totalCoches())>(c11.totalCoches()+c11.totalCoches())) {
 			c11.SC.setModo(4);
-			conexionExt.postDatos(4, 1);
+			actuar(4, 1);
 			c12.SC.setModo(4);
 			c21.SC.setModo(1);
 			c22.SC.setModo(1);
 		}
 		else {
 			c11.SC.setModo(1);
-			conexionExt.postDatos(1, 1);
+			actuar(1, 1);
 			c12.SC.setModo(1);
 			c21.SC.setModo(4);
 			c22.SC.setModo(4);
 		}
-		algoritmo();
 	}
 	public void algoritmo() {
 		Timer timer = new Timer();
 		TimerTask task = new TimerTask() {
 			@Override
 			public void run() {
-				if(in){
-					try{
-						wait();
-					}catch (InterruptedException e)
-					in = false
-				}
-				calles();
-				if(c21.SC.getModo() == 2 && c22.SC.getModo() == 2 && c11.SC.getModo()==2 && c12.SC.getModo() == 2)
-					iniciar();
-				else if(rojo1>60) {
-					switch (c11.SC.getModo()) {
-						case 1:
-							if (rojo2 > 120)
-								cambioLuz();
-							else if ((c21.totalCoches() + c22.totalCoches()) > 4 * (c21.numVias() + c22.numVias()) || c21.totalCoches() > 4 * (c21.numVias()) || c22.totalCoches() > 4 * (c22.numVias()))
-								cambioLuz();
-							if (c21.via(0) > 4 || c22.via(0) > 4 || (c22.via(0) + c21.via(0)) > 8)
-								luzGiro(2);
-							else if (c21.via(0) < 4 || c22.via(0) < 4 || (c22.via(0) + c21.via(0)) < 8)
-								luzGiroOff(2);
-							break;
-						case 4:
-							if (rojo1 > 120)
-								cambioLuz();
-							else if ((c11.totalCoches() + c22.totalCoches()) > 4 * (c11.numVias() + c12.numVias()) || c11.totalCoches() > 4 * (c11.numVias()) || c12.totalCoches() > 4 * (c12.numVias()))
-								cambioLuz();
-							if (c11.via(0) > 4 || c12.via(0) > 4 || (c12.via(0) + c11.via(0)) > 8)
-								luzGiro(1);
-							else if (c11.via(0) < 4 || c12.via(0) < 4 || (c12.via(0) + c11.via(0)) < 8)
-								luzGiroOff(1);
-							break;
-					}
-				}
+				Metricas m = metricas;
+				if (m != null)
+					m.retrasoTick.anotar(Math.max(0, System.currentTimeMillis() - scheduledExecutionTime()) * 1000000L);
+				tickSeguro(true);
 			}
 		};
 		// Empezamos al instante y luego lanzamos la tarea cada 1000ms, mirar cada cuanto se hace una lectura para coordinar el timer
 		timer.schedule(task,0,1000);
 	}
 
+	/*
+	 * Una pasada del algoritmo: lee las calles y decide. El vigilante cuenta tambien la espera por el
+	 * cerrojo, pero no la del ambar y el despeje de un cambio de fase, que es a proposito
+	 */
+	public void tick() {
+		tick(false);
+	}
+
+	/*
+	 * delTimer indica un tick de algoritmo(), el unico con hora fija: solo esos cuentan para la deriva
+	 */
+	private void tick(boolean delTimer) {
+		VigilanteTick v = vigilante;
+		if (v == null) {
+			pasada();
+			return;
+		}
+		long t0 = System.nanoTime();
+		long e0 = esperado(t0);
+		v.inicio(huecoVigilante, t0, e0, delTimer);
+		try {
+			pasada();
+		} finally {
+			long t1 = System.nanoTime();
+			v.fin(huecoVigilante, t0, t1, esperado(t1) - e0);
+		}
+	}
+
+	/*
+	 * tick() para los hilos que no pueden morir por un fallo: el Timer de algoritmo() se cancela para
+	 * siempre si su tarea lanza una excepcion, y FuentePush o el ejecutor de ClienteSensoresNio
+	 * perderian su hilo. El fallo se anota y el siguiente tick vuelve a empezar
+	 */
+	void tickSeguro() {
+		tickSeguro(false);
+	}
+
+	private void tickSeguro(boolean delTimer) {
+		try {
+			tick(delTimer);
+		} catch (RuntimeException e) {
+			System.out.println("Cruce " + id + ": fallo en el tick: " + e);
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * La lectura va con su propio cerrojo, asi una prioridad no espera a la red; la decision toma
+	 * ademas el del cruce para no solaparse con un cambioLuz() en curso
+	 */
+	private void pasada() {
+		synchronized (cerrojoLectura) {
+			calles();
+			decidir();
+		}
+	}
+
+	private synchronized void decidir() {
+		Umbrales u = umbrales.get();
+		ultimaDecision = -1;
+		if (finRestauracion >= 0) {
+			//Todo en rojo hasta acabar el despeje del cambio que se restauro a medias
+			if (reloj.ahora() < finRestauracion) {
+				estado.publicar(this);
+				return;
+			}
+			acabarRestauracion();
+		}
+		LlamadasPeaton lp = peatones;
+		boolean pasoAbierto = lp != null && lp.actualizar(this, reloj.ahora());
+		if(c21.SC.getModo() == 2 && c22.SC.getModo() == 2 && c11.SC.getModo()==2 && c12.SC.getModo() == 2)
+			elegirFase();
+		else if(prioridadActiva()) {
+			//Se mantiene el verde del eje con prioridad; si aun no lo tiene se le da
+			if (ladoVerde() != prioridadLado)
+				cambioLuz();
+		}
+		else if(pasoAbierto) {
+			//Se mantiene la fase hasta que se cierren los pasos de peatones abiertos
+		}
+		else if(lp != null && lp.esperaVencida(this, reloj.ahora())) {
+			lp.forzada();
+			ultimaDecision = CAMBIO;
+			registrarDecision(CAMBIO);
+			aplicar(CAMBIO);
+		}
+		else if(ondaVerde(u))
+			cambioLuz();
+		else if(c11.SC.getModo() == 1 && reloj.ahora() < finOnda) {
+			//Se mantiene el verde mientras pasa el peloton de la onda
+		}
+		else if(datosCaducados()) {
+			int d = planFijo.decidir(c11.SC.getModo(), rojo1, rojo2);
+			ultimaDecision = d;
+			registrarDecision(d);
+			aplicar(d);
+		}
+		else if(lecturaIncompleta) {
+			//Sin plan fijo se mantiene la fase hasta tener otra vez las cuatro calles
+		}
+		else if(rojo1>u.getMinRojo()) {
+			EventosTick.Decision evento = EventosTick.decision();
+			long t0 = System.nanoTime();
+			int reglas = decisionReglas(u);
+			PoliticaControl p = degradado ? null : politica;
+			int d = p != null ? p.decidir(this, reglas) : reglas;
+			EventosTick.decision(evento, id, c11.SC.getModo() == 1 ? c21.getPos() : c11.getPos(), d, p);
+			Metricas m = metricas;
+			if (m != null)
+				m.decision.anotar(System.nanoTime() - t0);
+			ultimaDecision = d;
+			registrarDecision(d);
+			aplicar(d);
+		}
+		estado.publicar(this);
+	}
+
+	/*
+	 * Indica si hay que seguir el plan fijo y avisa al entrar y salir de el. Una lectura incompleta
+	 * lo activa en el momento: las reglas no pueden decidir con calles vacias
+	 */
+	private boolean datosCaducados() {
+		PlanFijo p = planFijo;
+		boolean caducado = p != null && (lecturaIncompleta || p.caducado(ultimaLectura, reloj.ahora()));
+		if (caducado != enPlanFijo) {
+			enPlanFijo = caducado;
+			System.out.println("Cruce " + id + (caducado ? ": sin lecturas validas, plan fijo" : ": lecturas de nuevo, control adaptativo"));
+		}
+		return caducado;
+	}
+
+	public long getInicioFase() {
+		return inicioFase;
+	}
+
+	/*
+	 * Vuelve a un estado guardado por PuntoControl y reenvia los modos a los semaforos.
+	 * parado son los segundos que no se contaron mientras el proceso estaba parado. Si se guardo a
+	 * mitad de un cambioLuz() (ningun eje en verde) no se espera aqui, que bloquearia la restauracion
+	 * de los demas cruces: se pone todo en rojo y el tick da el verde cuando pase lo que quede de ambar
+	 * y despeje, al eje al que iba, destino (o el que diga el ambar). Si no hay ningun eje en verde
+	 * ni en rojo se guardo antes de elegirFase(): todo en rojo y el primer tick elige la fase
+	 */
+	synchronized void restaurar(int[] modos, int rojo1, int rojo2, long inicioFase, int parado, int destino, Umbrales u) {
+		synchronized (cerrojoUmbrales) {
+			//Si los umbrales guardados no cubren el despeje de los peatones de ahora se alarga el rojo
+			LlamadasPeaton lp = peatones;
+			if (lp != null && lp.getDespeje() > u.getMaxA() + u.getMaxR())
+				u = u.conMaxR(lp.getDespeje() - u.getMaxA());
+			umbrales.set(u);
+		}
+		c11.SG.setModo(modos[1]);
+		c12.SG.setModo(modos[3]);
+		c21.SG.setModo(modos[5]);
+		c22.SG.setModo(modos[7]);
+		int lado = modos[0] == 1 ? 1 : modos[4] == 1 ? 2 : 0;
+		finRestauracion = -1;
+		if (lado != 0) {
+			fase(lado);
+			this.rojo1 = lado == 1 ? rojo1 + parado : rojo1;
+			this.rojo2 = lado == 1 ? rojo2 : rojo2 + parado;
+			this.inicioFase = inicioFase;
+			actuar(c11.SC.getModo(), 1);
+		} else {
+			boolean sinFase = true;
+			for (int k = 0; k < 8; k += 2)
+				if (modos[k] == 1 || modos[k] == 4)
+					sinFase = false;
+			lado = sinFase ? 0 : destino != 0 ? destino : modos[0] == 2 ? 2 : modos[4] == 2 ? 1 : 0;
+			c11.SC.setModo(4);
+			c12.SC.setModo(4);
+			c21.SC.setModo(4);
+			c22.SC.setModo(4);
+			actuar(4, 1);
+			destinoCambio = lado;
+			finRestauracion = reloj.ahora() + (sinFase ? 0 : Math.max(0, u.getMaxA() + u.getMaxR() - parado) * 1000L);
+			this.rojo1 = 0;
+			this.rojo2 = 0;
+			this.inicioFase = reloj.ahora();
+		}
+		actuar(c11.SG.getModo(), 2);
+		estado.publicar(this);
+	}
+
+	/*
+	 * Fin del cambio restaurado a medias: verde al eje al que iba, o el que toque si no se sabe
+	 */
+	private void acabarRestauracion() {
+		int lado = destinoCambio;
+		finRestauracion = -1;
+		destinoCambio = 0;
+		if (lado == 0) {
+			elegirFase();
+		} else {
+			fase(lado);
+			actuar(c11.SC.getModo(), 1);
+			inicioFase = reloj.ahora();
+		}
+		rojo1 = 0;
+		rojo2 = 0;
+	}
+
+	/*
+	 * Verde al eje lado (1 = c11 y c12, 2 = c21 y c22) y rojo al otro, sin transicion ni envios
+	 */
+	private void fase(int lado) {
+		int m = lado == 1 ? 1 : 4;
+		c11.SC.setModo(m);
+		c12.SC.setModo(m);
+		c21.SC.setModo(5 - m);
+		c22.SC.setModo(5 - m);
+	}
+
+	public int getUltimaDecision() {
+		return ultimaDecision;
+	}
+
+	/*
+	 * Decision basada en reglas sobre los conteos actuales. Devuelve una combinacion de CAMBIO, GIRO_ON y GIRO_OFF
+	 */
+	public int decisionReglas() {
+		return decisionReglas(umbrales.get());
+	}
+
+	private int decisionReglas(Umbrales u) {
+		TablaDecision tabla = u.getTabla();
+		EstimadorCola e = estimador;
+		if (e != null) {
+			switch (c11.SC.getModo()) {
+				case 1:
+					return tabla.decidir(rojo2, e.total(2), e.numVias(2), e.total(3), e.numVias(3), e.via(2, 0), e.via(3, 0));
+				case 4:
+					return tabla.decidir(rojo1, e.total(0), e.numVias(0), e.total(1), e.numVias(1), e.via(0, 0), e.via(1, 0));
+			}
+			return MANTENER;
+		}
+		switch (c11.SC.getModo()) {
+			case 1:
+				return tabla.decidir(rojo2, c21.totalCoches(), c21.numVias(), c22.totalCoches(), c22.numVias(), primeraVia(c21), primeraVia(c22));
+			case 4:
+				return tabla.decidir(rojo1, c11.totalCoches(), c11.numVias(), c12.totalCoches(), c12.numVias(), primeraVia(c11), primeraVia(c12));
+		}
+		return MANTENER;
+	}
+
+	/*
+	 * La calle en rojo ha pasado de maxRojo, asi que las reglas piden CAMBIO por tiempo. Una politica
+	 * no puede quitar ese cambio; solo decide por debajo de maxRojo
+	 */
+	public boolean rojoAgotado() {
+		int maxRojo = umbrales.get().getMaxRojo();
+		switch (c11.SC.getModo()) {
+			case 1:
+				return rojo2 > maxRojo;
+			case 4:
+				return rojo1 > maxRojo;
+		}
+		return false;
+	}
+
+	/*
+	 * Coches de la via de giro; 0 si la calle llego sin vias
+	 */
+	private static int primeraVia(Calle c) {
+		return c.numVias() > 0 ? c.via(0) : 0;
+	}
+
+	/*
+	 * Ejecuta una decision. El giro se aplica a la calle que estaba en rojo antes del cambio
+	 */
+	public void aplicar(int d) {
+		int pos = c11.SC.getModo() == 1 ? 2 : 1;
+		if ((d & CAMBIO) != 0)
+			cambioLuz();
+		if ((d & GIRO_ON) != 0)
+			luzGiro(pos);
+		else if ((d & GIRO_OFF) != 0)
+			luzGiroOff(pos);
+	}
+
+	/*
+	 * Indica si toca dar verde a la calle 1 para seguir la onda verde del corredor
+	 */
+	private boolean ondaVerde(Umbrales u) {
+		long sugerido = inicioVerde;
+		//El cambio tarda maxA + maxR s, asi que empieza con esa antelacion para que el verde llegue a su hora
+		if (sugerido < 0 || reloj.ahora() < sugerido - (u.getMaxA() + u.getMaxR()) * 1000L)
+			return false;
+		inicioVerde = -1;
+		finOnda = sugerido + bandaVerde * 1000L;
+		return c11.SC.getModo() == 4;
+	}
+
+	/*
+	 * Envia una orden a los semaforos dejandola antes en el diario
+	 */
+	private void actuar(int modo, int posicion) {
+		if (diario != null) {
+			try {
+				diario.actuacion(reloj.ahora(), id, modo, posicion);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		RegistroOrdenes r = ordenes;
+		if (r != null)
+			r.ordenar(huecoOrdenes, modo, posicion);
+		else
+			enviarOrden(modo, posicion, 0);
+	}
+
+	/*
+	 * Un envio a los semaforos, desde el tick o desde el hilo de RegistroOrdenes. Solo toca la
+	 * conexion, el evento de la actuacion y las metricas
+	 */
+	boolean enviarOrden(int modo, int posicion, long secuencia) {
+		EventosTick.Actuacion evento = EventosTick.actuacion();
+		long t0 = System.nanoTime();
+		boolean correcto = conexionExt.postDatos(modo, posicion, secuencia);
+		EventosTick.actuacion(evento, id, posicion, modo);
+		Metricas m = metricas;
+		if (m != null) {
+			m.actuacion.anotar(System.nanoTime() - t0);
+			if (!correcto)
+				m.postsFallidos.increment();
+		}
+		return correcto;
+	}
+
+	/*
+	 * Lo llama LlamadasPeaton al recoger cada pulsacion en el tick
+	 */
+	void registrarPulsacion(int calle, long instante) {
+		if (diario != null) {
+			try {
+				diario.pulsacion(instante, id, calle);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void registrarDecision(int d) {
+		if (diario != null) {
+			try {
+				diario.decision(reloj.ahora(), id, d, c11.SC.getModo());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Se llama tras cada lectura de las calles
+	 */
+	private void lecturaRecibida() {
+		//El diario guarda la lectura tal cual llego; el resto ya trabaja con la corregida
+		registrarLecturas();
+		DetectorAnomalias d = detector;
+		if (d != null) {
+			d.corregir(0, c11);
+			d.corregir(1, c12);
+			d.corregir(2, c21);
+			d.corregir(3, c22);
+		}
+		EstimadorCola e = estimador;
+		if (e != null) {
+			e.actualizar(0, c11);
+			e.actualizar(1, c12);
+			e.actualizar(2, c21);
+			e.actualizar(3, c22);
+		}
+		PronosticoColas p = pronostico;
+		if (p != null)
+			p.actualizar(huecoPronostico, c11, c12, c21, c22);
+	}
+
+	private void registrarLecturas() {
+		if (diario != null) {
+			long ahora = reloj.ahora();
+			try {
+				diario.lectura(ahora, id, c11);
+				diario.lectura(ahora, id, c12);
+				diario.lectura(ahora, id, c21);
+				diario.lectura(ahora, id, c22);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	public void calles() {
-		conexionExt.abrirConexion();
-		ArrayList<Integer> street = new ArrayList<Integer>();
-		Auxiliar aux = new Auxiliar ();
+		if (fuente != null) {
+			boolean valida = true;
+			EventosTick.Lectura evento = EventosTick.lectura();
+			long t0 = System.nanoTime();
+			try {
+				fuente.leer(c11, c12, c21, c22);
+			} catch (IOException e) {
+				e.printStackTrace();
+				valida = false;
+			}
+			EventosTick.lectura(evento, id, 0, valida);
+			anotarLectura(System.nanoTime() - t0);
+			marcarLectura(valida);
+			lecturaRecibida();
+			return;
+		}
+		boolean valida = true;
+		c11.reset();
+		c12.reset();
 		try {
-            street = conexionExt.getDatos();
+            leerCalle(c11);
 
         } catch (IOException e) {
             e.printStackTrace();
+            valida = false;
         }
-        c11.setVias(street);
-        try {
-            street = conexionExt.getDatos();
+        //Si la primera lectura vence su plazo no se espera otro plazo entero por la segunda
+        if (valida) {
+            try {
+                leerCalle(c12);
 
-        } catch (IOException e) {
-            e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+                valida = false;
+            }
         }
-		c12.setVias(street);
-		c21.setVias(aux.generadorDatos(street));
-		c22.setVias(aux.generadorDatos(street));
+		Auxiliar.generadorDatos(c21, c12.numVias());
+		Auxiliar.generadorDatos(c22, c12.numVias());
+		marcarLectura(valida);
+		lecturaRecibida();
+	}
+
+	/*
+	 * getDatos() para la calle c, separando en eventos la peticion y el analisis de la respuesta
+	 */
+	private void leerCalle(Calle c) throws IOException {
+		if (conexionExt.isBinario()) {
+			//En binario el analisis es parte de la lectura del cuerpo, no se separa
+			EventosTick.Lectura lectura = EventosTick.lectura();
+			long t0 = System.nanoTime();
+			boolean correcta = false;
+			try {
+				conexionExt.getDatos(c);
+				correcta = true;
+				return;
+			} finally {
+				EventosTick.lectura(lectura, id, c.getPos(), correcta);
+				anotarLectura(System.nanoTime() - t0);
+			}
+		}
+		EventosTick.Lectura lectura = EventosTick.lectura();
+		long t0 = System.nanoTime();
+		String datos = null;
+		boolean correcta = false;
+		try {
+			datos = conexionExt.leerDatos();
+			correcta = true;
+		} finally {
+			EventosTick.lectura(lectura, id, c.getPos(), correcta);
+			anotarLectura(System.nanoTime() - t0);
+		}
+		EventosTick.Analisis analisis = EventosTick.analisis();
+		ConexionExterna.analizar(datos, c);
+		EventosTick.analisis(analisis, id, c.getPos(), c.numVias());
+	}
+
+	/*
+	 * Una lectura es valida si llego a tiempo y trae vias de las cuatro calles. Si no, decidir() pasa
+	 * al plan fijo (o mantiene la fase) sin esperar a que caduque la ultima buena
+	 */
+	private void marcarLectura(boolean valida) {
+		boolean completa = valida && c11.numVias() > 0 && c12.numVias() > 0 && c21.numVias() > 0 && c22.numVias() > 0;
+		lecturaIncompleta = !completa;
+		if (completa)
+			ultimaLectura = reloj.ahora();
+		else if (metricas != null)
+			metricas.lecturasCaducadas.increment();
+	}
+
+	private void anotarLectura(long ns) {
+		Metricas m = metricas;
+		if (m != null)
+			m.lectura.anotar(ns);
 	}
 
 	public void timer() {
@@ -210,15 +1106,21 @@ public class GestionCruce {
 		TimerTask task = new TimerTask() {
 			@Override
 			public void run() {
-
-				if (c11.SC.getModo() == 1)
-					rojo1++;
-				else
-					rojo2++;
+				contarTiempo();
 			}
 		};
 		// Empezamos al instante y luego lanzamos la tarea cada 1000ms, mirar cada cuanto se hace una lectura para coordinar el timer
 		timer.schedule(task, 0, 1000);
 
 	}
+
+	/*
+	 * Suma un segundo al contador de la calle que esta en verde
+	 */
+	public void contarTiempo() {
+		if (c11.SC.getModo() == 1)
+			rojo1++;
+		else
+			rojo2++;
+	}
 }
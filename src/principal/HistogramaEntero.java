@@ -0,0 +1,45 @@
+package principal;
+
+/*
+ * Histograma exacto de enteros entre 0 y max; lo que pasa de max se cuenta en la ultima casilla.
+ * Sirve para calcular percentiles en una sola pasada y se puede fusionar con otros.
+ */
+public class HistogramaEntero {
+	private final long[] cuentas;
+	private long total;
+
+	public HistogramaEntero(int max) {
+		cuentas = new long[max + 1];
+	}
+
+	public void anadir(int v) {
+		cuentas[Math.max(0, Math.min(v, cuentas.length - 1))]++;
+		total++;
+	}
+
+	public void fusionar(HistogramaEntero otro) {
+		for (int i = 0; i < cuentas.length; i++)
+			cuentas[i] += otro.cuentas[i];
+		total += otro.total;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	/*
+	 * Menor valor que deja por debajo al menos la fraccion p de las muestras, -1 si no hay muestras
+	 */
+	public int percentil(double p) {
+		if (total == 0)
+			return -1;
+		long objetivo = Math.max(1, (long) Math.ceil(p * total));
+		long acumulado = 0;
+		for (int i = 0; i < cuentas.length; i++) {
+			acumulado += cuentas[i];
+			if (acumulado >= objetivo)
+				return i;
+		}
+		return cuentas.length - 1;
+	}
+}
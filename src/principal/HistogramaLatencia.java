@@ -0,0 +1,49 @@
+package principal;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Histograma de latencias con casillas fijas, para exportar en formato Prometheus. Cada casilla es
+ * un LongAdder, que reparte las sumas entre varias celdas cuando hay contencion, asi que muchos
+ * cruces pueden anotar a la vez sin cerrojos y sin reservar memoria.
+ */
+public class HistogramaLatencia {
+	//Limites superiores de las casillas, en ns: de 0.5 ms a 2.5 s
+	static final long[] LIMITES = { 500000L, 1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L,
+			100000000L, 250000000L, 500000000L, 1000000000L, 2500000000L };
+	private static final String[] ETIQUETAS = { "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05",
+			"0.1", "0.25", "0.5", "1", "2.5", "+Inf" };
+
+	private final LongAdder[] cuentas = new LongAdder[LIMITES.length + 1]; //La ultima es +Inf
+	private final LongAdder suma = new LongAdder(); //ns
+
+	public HistogramaLatencia() {
+		for (int i = 0; i < cuentas.length; i++)
+			cuentas[i] = new LongAdder();
+	}
+
+	public void anotar(long ns) {
+		int i = 0;
+		while (i < LIMITES.length && ns > LIMITES[i])
+			i++;
+		cuentas[i].increment();
+		suma.add(ns);
+	}
+
+	/*
+	 * Escribe el histograma en formato de texto de Prometheus, con las casillas acumuladas y en segundos
+	 */
+	void exportar(StringBuilder sb, String nombre, String ayuda) {
+		sb.append("# HELP ").append(nombre).append(' ').append(ayuda).append('\n');
+		sb.append("# TYPE ").append(nombre).append(" histogram\n");
+		long acumulado = 0;
+		for (int i = 0; i < cuentas.length; i++) {
+			acumulado += cuentas[i].sum();
+			sb.append(nombre).append("_bucket{le=\"")
+					.append(ETIQUETAS[i]).append("\"} ")
+					.append(acumulado).append('\n');
+		}
+		sb.append(nombre).append("_sum ").append(suma.sum() / 1e9).append('\n');
+		sb.append(nombre).append("_count ").append(acumulado).append('\n');
+	}
+}
@@ -0,0 +1,199 @@
+package principal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Pulsadores de peatones de un cruce. Cada calle (posicion 1 a 4) tiene su paso de peatones, que
+ * la cruza y por tanto solo puede abrirse con la calle en rojo; su semaforo es el SP de la Calle.
+ *
+ * pulsar() vale desde cualquier hilo: deja la llamada en una cola sin cerrojos y vuelve. La cola la
+ * vacia el tick del cruce al empezar su decision, asi que no hace falta ningun hilo mas. En el tick:
+ *
+ *   - La llamada de una calle en rojo se atiende en el momento: paso durante tiempoPaso s y despeje
+ *     durante despeje s. Mientras tanto el cruce no cambia de fase: se alarga el verde del otro eje.
+ *   - La de una calle en verde espera al cambio de fase de las reglas; si pasan maxEspera s sin
+ *     cambio se fuerza en cuanto se cierren los pasos abiertos. Mientras haya una llamada asi
+ *     vencida solo se abren pasos de llamadas anteriores a ella, para que ninguna se quede esperando.
+ *
+ * Una prioridad (GestionCruce.prioridad) no espera a los peatones: corta el paso y el despeje se
+ * hace durante el ambar y el rojo de despeje del cambio, asi que despeje no puede pasar de maxA + maxR;
+ * lo comprueba GestionCruce.setPeatones.
+ */
+public class LlamadasPeaton {
+	private static final class Llamada {
+		final int calle;
+		final long instante; //ms
+
+		Llamada(int calle, long instante) {
+			this.calle = calle;
+			this.instante = instante;
+		}
+	}
+
+	private final int tiempoPaso; //s
+	private final int despeje; //s
+	private final int maxEspera; //s
+	private final int[] posiciones = new int[4]; //Posicion de cada paso en los semaforos reales, 0 si no se envia
+	private final Queue<Llamada> cola = new ConcurrentLinkedQueue<Llamada>();
+	//Solo los toca el tick, con el cerrojo del cruce
+	private final long[] llamada = { -1, -1, -1, -1 }; //Instante (ms) de la llamada pendiente, -1 si no hay
+	private final long[] finPaso = new long[4];
+	private final long[] finDespeje = new long[4];
+	private volatile long atendidas;
+	private volatile long forzadas;
+	private volatile long esperaMax; //ms
+	private volatile long esperaTotal; //ms
+
+	public LlamadasPeaton(int tiempoPaso, int despeje, int maxEspera) {
+		if (tiempoPaso <= 0 || despeje < 0 || maxEspera < 0)
+			throw new IllegalArgumentException("Tiempos de peatones no validos");
+		this.tiempoPaso = tiempoPaso;
+		this.despeje = despeje;
+		this.maxEspera = maxEspera;
+	}
+
+	/*
+	 * Posiciones de los pasos de c11, c12, c21 y c22 para postDatos; sin esto solo cambia el estado del cruce
+	 */
+	public void setPosiciones(int... posiciones) {
+		System.arraycopy(posiciones, 0, this.posiciones, 0, Math.min(4, posiciones.length));
+	}
+
+	int getDespeje() {
+		return despeje;
+	}
+
+	int posicion(int k) {
+		return posiciones[k];
+	}
+
+	/*
+	 * Una pulsacion en la calle de esa posicion (1 a 4). No bloquea
+	 */
+	void pulsar(int calle, long instante) {
+		if (calle < 1 || calle > 4)
+			throw new IllegalArgumentException("Calle no valida: " + calle);
+		cola.offer(new Llamada(calle, instante));
+	}
+
+	/*
+	 * Recoge las llamadas, cierra los pasos que han acabado y abre los que se pueden atender.
+	 * Devuelve true si queda algun paso abierto (paso o despeje)
+	 */
+	boolean actualizar(GestionCruce gc, long ahora) {
+		Llamada l;
+		while ((l = cola.poll()) != null) {
+			gc.registrarPulsacion(l.calle, l.instante);
+			int k = l.calle - 1;
+			if (llamada[k] < 0 && gc.calle(k).SP.getModo() != 1)
+				llamada[k] = l.instante;
+		}
+		long vencida = vencida(gc, ahora);
+		boolean abierto = false;
+		for (int k = 0; k < 4; k++) {
+			Calle c = gc.calle(k);
+			int modo = c.SP.getModo();
+			if (modo == 1 && ahora >= finPaso[k])
+				gc.luzPeaton(k, modo = 2);
+			if (modo == 2 && ahora >= finDespeje[k])
+				gc.luzPeaton(k, modo = 4);
+			if (llamada[k] >= 0 && modo != 1 && modo != 2 && c.SC.getModo() == 4 && (vencida < 0 || llamada[k] < vencida)) {
+				gc.luzPeaton(k, modo = 1);
+				finPaso[k] = ahora + tiempoPaso * 1000L;
+				finDespeje[k] = finPaso[k] + despeje * 1000L;
+				anotarEspera(ahora - llamada[k]);
+				llamada[k] = -1;
+			}
+			if (modo == 1 || modo == 2)
+				abierto = true;
+		}
+		return abierto;
+	}
+
+	/*
+	 * Hay una llamada de una calle en verde que lleva maxEspera s esperando el cambio
+	 */
+	boolean esperaVencida(GestionCruce gc, long ahora) {
+		return vencida(gc, ahora) >= 0;
+	}
+
+	/*
+	 * Instante de la llamada vencida mas antigua de las calles en verde, -1 si no hay ninguna
+	 */
+	private long vencida(GestionCruce gc, long ahora) {
+		long resul = -1;
+		for (int k = 0; k < 4; k++)
+			if (llamada[k] >= 0 && gc.calle(k).SC.getModo() == 1 && ahora - llamada[k] >= maxEspera * 1000L
+					&& (resul < 0 || llamada[k] < resul))
+				resul = llamada[k];
+		return resul;
+	}
+
+	void forzada() {
+		forzadas++;
+	}
+
+	/*
+	 * Un cambio de fase va a empezar: los pasos abiertos pasan a despeje, que dura lo que el cambio
+	 */
+	void cortarPasos(GestionCruce gc) {
+		for (int k = 0; k < 4; k++)
+			if (gc.calle(k).SP.getModo() == 1)
+				gc.luzPeaton(k, 2);
+	}
+
+	/*
+	 * El cambio de fase ha acabado: los pasos en despeje se cierran
+	 */
+	void cerrarPasos(GestionCruce gc) {
+		for (int k = 0; k < 4; k++)
+			if (gc.calle(k).SP.getModo() == 2)
+				gc.luzPeaton(k, 4);
+	}
+
+	private void anotarEspera(long ms) {
+		atendidas++;
+		esperaTotal += ms;
+		if (ms > esperaMax)
+			esperaMax = ms;
+	}
+
+	/*
+	 * Espera maxima (s) de una llamada sin prioridades por medio. La peor es la de una calle en rojo
+	 * que llega con otra ya vencida: espera a que se cierre el paso abierto y al cambio de fase para
+	 * aquella; luego a que venza la suya y se cierre el paso de aquella, y a otro cambio. Mas los
+	 * ticks hasta notar cada cosa
+	 */
+	public int cotaEspera(Umbrales u) {
+		return 4 + maxEspera + 2 * (tiempoPaso + despeje + u.getMaxA() + u.getMaxR());
+	}
+
+	public int pendientes() {
+		int n = cola.size();
+		for (int k = 0; k < 4; k++)
+			if (llamada[k] >= 0)
+				n++;
+		return n;
+	}
+
+	public long getAtendidas() {
+		return atendidas;
+	}
+
+	public long getForzadas() {
+		return forzadas;
+	}
+
+	/*
+	 * ms de la llamada que mas espero hasta abrir su paso
+	 */
+	public long getEsperaMax() {
+		return esperaMax;
+	}
+
+	public long getEsperaMedia() {
+		long n = atendidas;
+		return n == 0 ? 0 : esperaTotal / n;
+	}
+}
@@ -8,7 +8,6 @@ public class Main {
 	public static void main(String[] args) throws IOException {
 		// TODO Auto-generated method stub
 		ConexionExterna conexionExt = new ConexionExterna();
-		conexionExt.abrirConexion();
 		conexionExt.postDatos(2, 4);
 		//gestionCruce()
 //		GestionCruce gc = new GestionCruce ();
@@ -0,0 +1,75 @@
+package principal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Metricas de todos los cruces de un proceso. Anotar es un incremento de LongAdder, barato para
+ * hacerlo en cada tick; se leen al exportar en formato de texto de Prometheus, que sirve servir()
+ * en /metrics con el HttpServer del JDK.
+ */
+public class Metricas {
+	final HistogramaLatencia lectura = new HistogramaLatencia();
+	final HistogramaLatencia decision = new HistogramaLatencia();
+	final HistogramaLatencia actuacion = new HistogramaLatencia();
+	final HistogramaLatencia retrasoTick = new HistogramaLatencia();
+	final HistogramaLatencia prioridad = new HistogramaLatencia();
+	final LongAdder cambiosFase = new LongAdder();
+	final LongAdder giros = new LongAdder();
+	final LongAdder postsFallidos = new LongAdder();
+	final LongAdder lecturasCaducadas = new LongAdder();
+	final LongAdder prioridades = new LongAdder();
+	private HttpServer servidor;
+
+	public String exportar() {
+		StringBuilder sb = new StringBuilder(4096);
+		lectura.exportar(sb, "semaforo_lectura_segundos", "Duracion de la lectura de los sensores");
+		decision.exportar(sb, "semaforo_decision_segundos", "Duracion de la decision (reglas y politica)");
+		actuacion.exportar(sb, "semaforo_actuacion_segundos", "Duracion de cada envio a los semaforos");
+		retrasoTick.exportar(sb, "semaforo_retraso_tick_segundos", "Retraso de cada tick sobre su hora prevista");
+		prioridad.exportar(sb, "semaforo_prioridad_segundos", "Desde cada peticion de prioridad hasta el inicio de su transicion");
+		contador(sb, "semaforo_cambios_fase_total", "Cambios de fase", cambiosFase);
+		contador(sb, "semaforo_giros_total", "Encendidos y apagados del semaforo de giro", giros);
+		contador(sb, "semaforo_posts_fallidos_total", "Envios a los semaforos sin respuesta correcta", postsFallidos);
+		contador(sb, "semaforo_lecturas_caducadas_total", "Lecturas fallidas, vencidas o vacias", lecturasCaducadas);
+		contador(sb, "semaforo_prioridades_total", "Peticiones de prioridad atendidas", prioridades);
+		return sb.toString();
+	}
+
+	private static void contador(StringBuilder sb, String nombre, String ayuda, LongAdder valor) {
+		sb.append("# HELP ").append(nombre).append(' ').append(ayuda).append('\n');
+		sb.append("# TYPE ").append(nombre).append(" counter\n");
+		sb.append(nombre).append(' ').append(valor.sum()).append('\n');
+	}
+
+	/*
+	 * Sirve las metricas en http://<host>:puerto/metrics
+	 */
+	public synchronized void servir(int puerto) throws IOException {
+		servidor = HttpServer.create(new InetSocketAddress(puerto), 0);
+		servidor.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange ex) throws IOException {
+				byte[] cuerpo = exportar().getBytes(StandardCharsets.UTF_8);
+				ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				ex.sendResponseHeaders(200, cuerpo.length);
+				try (OutputStream os = ex.getResponseBody()) {
+					os.write(cuerpo);
+				}
+			}
+		});
+		servidor.start();
+	}
+
+	public synchronized void parar() {
+		if (servidor != null)
+			servidor.stop(0);
+	}
+}
@@ -0,0 +1,67 @@
+package principal;
+
+/*
+ * Plan de tiempos fijos para cuando las lecturas de los sensores dejan de llegar. Se calcula de
+ * antemano (por ejemplo con los flujos medios del historico) para que el tick no tenga que hacer
+ * nada mas que comparar el tiempo en verde de cada calle con su reparto.
+ */
+public class PlanFijo {
+	private static final int VERDE_MINIMO = 5; //s
+
+	private final int verde1; //s en verde de la calle 1 (c11, c12)
+	private final int verde2; //s en verde de la calle 2 (c21, c22)
+	private final long maxEdad; //ms sin lecturas validas tras los que se pasa a este plan
+
+	public PlanFijo(int verde1, int verde2, long maxEdad) {
+		if (verde1 <= 0 || verde2 <= 0 || maxEdad <= 0)
+			throw new IllegalArgumentException("Tiempos del plan fijo no validos");
+		this.verde1 = verde1;
+		this.verde2 = verde2;
+		this.maxEdad = maxEdad;
+	}
+
+	/*
+	 * Reparte el verde de un ciclo (s) entre las dos calles en proporcion a su flujo, quitando antes
+	 * el tiempo perdido en ambar y rojo de ambas
+	 */
+	public static PlanFijo repartir(int ciclo, int perdido, double flujo1, double flujo2, long maxEdad) {
+		int verde = ciclo - perdido;
+		if (verde < 2 * VERDE_MINIMO)
+			throw new IllegalArgumentException("Ciclo demasiado corto: " + ciclo);
+		double total = flujo1 + flujo2;
+		int v1 = total <= 0 ? verde / 2 : (int) Math.round(verde * flujo1 / total);
+		v1 = Math.max(VERDE_MINIMO, Math.min(verde - VERDE_MINIMO, v1));
+		return new PlanFijo(v1, verde - v1, maxEdad);
+	}
+
+	/*
+	 * Indica si la ultima lectura valida es demasiado antigua
+	 */
+	public boolean caducado(long ultimaLectura, long ahora) {
+		return ahora - ultimaLectura > maxEdad;
+	}
+
+	/*
+	 * Decision del plan: CAMBIO cuando la calle en verde ha agotado su parte del ciclo.
+	 * rojo1 y rojo2 son los contadores de GestionCruce (s en verde de la calle 1 y de la 2)
+	 */
+	public int decidir(int modoC11, int rojo1, int rojo2) {
+		if (modoC11 == 1)
+			return rojo1 >= verde1 ? GestionCruce.CAMBIO : GestionCruce.MANTENER;
+		if (modoC11 == 4)
+			return rojo2 >= verde2 ? GestionCruce.CAMBIO : GestionCruce.MANTENER;
+		return GestionCruce.MANTENER;
+	}
+
+	public int getVerde1() {
+		return verde1;
+	}
+
+	public int getVerde2() {
+		return verde2;
+	}
+
+	public long getMaxEdad() {
+		return maxEdad;
+	}
+}
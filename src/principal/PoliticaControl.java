@@ -0,0 +1,9 @@
+package principal;
+
+/*
+ * Politica que decide en cada tick de GestionCruce. Recibe la decision de las reglas para poder
+ * usarla como respaldo y devuelve una combinacion de GestionCruce.CAMBIO, GIRO_ON y GIRO_OFF
+ */
+public interface PoliticaControl {
+	int decidir(GestionCruce gc, int reglas);
+}
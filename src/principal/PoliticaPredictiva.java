@@ -0,0 +1,203 @@
+package principal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Politica predictiva: en cada tick simula varios planes de fase sobre un modelo sencillo de colas
+ * y aplica la primera accion del mejor. El plan k consiste en cambiar la luz dentro de k ticks
+ * (k = horizonte equivale a aguantar todo el horizonte). Si las simulaciones no terminan dentro del presupuesto del
+ * tick se devuelve la decision de las reglas.
+ *
+ * Las llegadas se estiman con una media movil de lo que crece cada cola. Si el cruce tiene
+ * PronosticoColas se usan en su lugar las que se deducen de la cola prevista para el siguiente tick,
+ * que tienen en cuenta el momento del ciclo.
+ *
+ * Se puede compartir entre cruces: las llegadas estimadas se guardan por cruce y solo las toca el
+ * tick de ese cruce, con su cerrojo.
+ */
+public class PoliticaPredictiva implements PoliticaControl {
+	private static final double SATURACION = 0.5; //Vehiculos por segundo que salen de cada via en verde
+	private static final double ALFA = 0.2; //Peso de la ultima medida en la estimacion de llegadas
+	private final ExecutorService trabajadores;
+	private final int horizonte; //Ticks simulados
+	private final int simulaciones; //Simulaciones por plan
+	private final long presupuestoMs; //Tiempo maximo por tick
+	private final AtomicLong semilla = new AtomicLong(System.nanoTime());
+	private final ConcurrentHashMap<GestionCruce, Llegadas> llegadas = new ConcurrentHashMap<GestionCruce, Llegadas>();
+	private final LongAdder fallos = new LongAdder(); //Ticks en los que se agoto el presupuesto
+
+	private static final class Llegadas {
+		double calle1 = -1; //Llegadas por segundo estimadas en la calle 1 (c11+c12)
+		double calle2 = -1; //Llegadas por segundo estimadas en la calle 2 (c21+c22)
+		int cola1Anterior;
+		int cola2Anterior;
+	}
+
+	public PoliticaPredictiva(int horizonte, int simulaciones, long presupuestoMs) {
+		this(horizonte, simulaciones, presupuestoMs, Runtime.getRuntime().availableProcessors());
+	}
+
+	public PoliticaPredictiva(int horizonte, int simulaciones, long presupuestoMs, int hilos) {
+		if (horizonte <= 0 || simulaciones <= 0 || presupuestoMs <= 0)
+			throw new IllegalArgumentException("Horizonte, simulaciones y presupuesto deben ser positivos");
+		this.horizonte = horizonte;
+		this.simulaciones = simulaciones;
+		this.presupuestoMs = presupuestoMs;
+		this.trabajadores = Executors.newFixedThreadPool(hilos);
+	}
+
+	public long getFallos() {
+		return fallos.sum();
+	}
+
+	public void parar() {
+		trabajadores.shutdownNow();
+	}
+
+	/*
+	 * Sustituye el bit de CAMBIO de las reglas por el del mejor plan, salvo si las reglas lo piden
+	 * porque la calle en rojo ha llegado a maxRojo: ese cambio se hace siempre
+	 */
+	@Override
+	public int decidir(GestionCruce gc, int reglas) {
+		final boolean verde1 = gc.getC11().SC.getModo() == 1;
+		final int cola1 = gc.getC11().totalCoches() + gc.getC12().totalCoches();
+		final int cola2 = gc.getC21().totalCoches() + gc.getC22().totalCoches();
+		final int vias1 = gc.getC11().numVias() + gc.getC12().numVias();
+		final int vias2 = gc.getC21().numVias() + gc.getC22().numVias();
+		final int perdido = gc.getMaxA() + gc.getMaxR();
+		Llegadas ll = llegadas.get(gc);
+		if (ll == null) {
+			ll = new Llegadas();
+			llegadas.put(gc, ll);
+		}
+		actualizarLlegadas(ll, cola1, cola2, verde1 ? vias1 : 0, verde1 ? 0 : vias2);
+		if (gc.rojoAgotado())
+			return reglas;
+		float p1 = gc.prevision(0, 1) + gc.prevision(1, 1);
+		float p2 = gc.prevision(2, 1) + gc.prevision(3, 1);
+		// Sin lecturas en el pronostico cada calle da -1 y la suma sale negativa
+		boolean conPronostico = p1 >= 0 && p2 >= 0;
+		final double l1 = conPronostico ? llegadasPrevistas(p1, cola1, verde1 ? vias1 : 0) : ll.calle1;
+		final double l2 = conPronostico ? llegadasPrevistas(p2, cola2, verde1 ? 0 : vias2) : ll.calle2;
+		//Se simula el horizonte mas el tiempo perdido para que cambiar al final no salga gratis
+		final int duracion = horizonte + perdido;
+
+		List<Callable<Double>> planes = new ArrayList<Callable<Double>>(horizonte + 1);
+		for (int k = 0; k <= horizonte; k++) {
+			final int cambio = k;
+			final long s = semilla.getAndIncrement();
+			planes.add(new Callable<Double>() {
+				@Override
+				public Double call() {
+					SplittableRandom rnd = new SplittableRandom(s);
+					double total = 0;
+					for (int i = 0; i < simulaciones; i++) {
+						//invokeAll interrumpe las tareas que no acaban a tiempo; no tiene sentido seguir
+						if (Thread.interrupted())
+							throw new CancellationException("Fuera de presupuesto");
+						total += simular(cambio, duracion, verde1, cola1, cola2, vias1, vias2, l1, l2, perdido, rnd);
+					}
+					return total / simulaciones;
+				}
+			});
+		}
+		long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(presupuestoMs);
+		try {
+			List<Future<Double>> resultados = trabajadores.invokeAll(planes, presupuestoMs, TimeUnit.MILLISECONDS);
+			int mejor = -1;
+			double mejorCoste = Double.MAX_VALUE;
+			for (int k = 0; k < resultados.size(); k++) {
+				double c = resultados.get(k).get();
+				if (c < mejorCoste) {
+					mejorCoste = c;
+					mejor = k;
+				}
+			}
+			if (System.nanoTime() > limite)
+				throw new CancellationException("Fuera de presupuesto");
+			int d = reglas & ~GestionCruce.CAMBIO;
+			return mejor == 0 ? d | GestionCruce.CAMBIO : d;
+		} catch (CancellationException | ExecutionException e) {
+			fallos.increment();
+			return reglas;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fallos.increment();
+			return reglas;
+		}
+	}
+
+	/*
+	 * Estima las llegadas como lo que crece la cola mas lo que ha salido desde la lectura anterior
+	 */
+	private static void actualizarLlegadas(Llegadas ll, int cola1, int cola2, int viasVerde1, int viasVerde2) {
+		if (ll.calle1 < 0) {
+			ll.calle1 = 0;
+			ll.calle2 = 0;
+		} else {
+			double m1 = Math.max(0, cola1 - ll.cola1Anterior + Math.min(ll.cola1Anterior, SATURACION * viasVerde1));
+			double m2 = Math.max(0, cola2 - ll.cola2Anterior + Math.min(ll.cola2Anterior, SATURACION * viasVerde2));
+			ll.calle1 += ALFA * (m1 - ll.calle1);
+			ll.calle2 += ALFA * (m2 - ll.calle2);
+		}
+		ll.cola1Anterior = cola1;
+		ll.cola2Anterior = cola2;
+	}
+
+	/*
+	 * Llegadas en el proximo segundo segun el pronostico: lo que crecera la cola mas lo que sale en verde
+	 */
+	private static double llegadasPrevistas(float prevista, int cola, int viasVerde) {
+		return Math.max(0, prevista - cola + Math.min(cola, SATURACION * viasVerde));
+	}
+
+	/*
+	 * Simula un plan segundo a segundo durante duracion segundos y devuelve la suma de vehiculos
+	 * en cola (vehiculos*segundo)
+	 */
+	static double simular(int cambio, int duracion, boolean verde1, double q1, double q2, int vias1, int vias2,
+			double l1, double l2, int perdido, SplittableRandom rnd) {
+		double coste = 0;
+		int bloqueo = 0; //Segundos que quedan de amarillo + rojo tras un cambio
+		for (int t = 0; t < duracion; t++) {
+			if (t == cambio) {
+				verde1 = !verde1;
+				bloqueo = perdido;
+			}
+			q1 += poisson(l1, rnd);
+			q2 += poisson(l2, rnd);
+			if (bloqueo > 0)
+				bloqueo--;
+			else if (verde1)
+				q1 = Math.max(0, q1 - SATURACION * vias1);
+			else
+				q2 = Math.max(0, q2 - SATURACION * vias2);
+			coste += q1 + q2;
+		}
+		return coste;
+	}
+
+	private static int poisson(double media, SplittableRandom rnd) {
+		double l = Math.exp(-media);
+		double p = rnd.nextDouble();
+		int k = 0;
+		while (p > l) {
+			p *= rnd.nextDouble();
+			k++;
+		}
+		return k;
+	}
+}
@@ -0,0 +1,258 @@
+package principal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Politica aprendida con Q-learning tabular. El estado es el nivel de cola de cada calle, la calle que
+ * esta en verde y cuanto lleva en verde; las acciones son mantener o cambiar. La tabla Q se entrena
+ * fuera de linea con varios simuladores en paralelo y despues se reduce a un array con la mejor
+ * accion de cada estado, de modo que decidir es una sola lectura del array.
+ */
+public class PoliticaQ implements PoliticaControl {
+	private static final int[] LIMITES_COLA = {4, 8, 16}; //Niveles de cola: 0-3, 4-7, 8-15, 16+
+	private static final int[] LIMITES_TIEMPO = {30, 60, 120}; //Niveles de tiempo en verde (s)
+	private static final int NIVELES_COLA = LIMITES_COLA.length + 1;
+	private static final int NIVELES_TIEMPO = LIMITES_TIEMPO.length + 1;
+	public static final int ESTADOS = NIVELES_COLA * NIVELES_COLA * NIVELES_COLA * NIVELES_COLA * 2 * NIVELES_TIEMPO;
+	public static final int ACCIONES = 2; //0 mantener, 1 cambiar
+
+	private final float[] q; //q[estado * ACCIONES + accion]
+	private final byte[] mejor; //Accion con mayor Q de cada estado
+
+	private PoliticaQ(float[] q) {
+		this.q = q;
+		this.mejor = new byte[ESTADOS];
+		for (int e = 0; e < ESTADOS; e++)
+			mejor[e] = (byte) (q[e * ACCIONES + 1] > q[e * ACCIONES] ? 1 : 0);
+	}
+
+	/*
+	 * Sustituye el bit de CAMBIO de las reglas por la accion de la tabla. El giro sigue las reglas, y
+	 * tambien el cambio si lo piden porque la calle en rojo ha llegado a maxRojo
+	 */
+	@Override
+	public int decidir(GestionCruce gc, int reglas) {
+		if (gc.rojoAgotado())
+			return reglas;
+		boolean verde1 = gc.getC11().SC.getModo() == 1;
+		int e = estado(gc.getC11().totalCoches(), gc.getC12().totalCoches(), gc.getC21().totalCoches(),
+				gc.getC22().totalCoches(), verde1, verde1 ? gc.getRojo1() : gc.getRojo2());
+		int d = reglas & ~GestionCruce.CAMBIO;
+		return mejor[e] == 1 ? d | GestionCruce.CAMBIO : d;
+	}
+
+	static int estado(int q11, int q12, int q21, int q22, boolean verde1, int tiempo) {
+		int e = nivel(q11, LIMITES_COLA);
+		e = e * NIVELES_COLA + nivel(q12, LIMITES_COLA);
+		e = e * NIVELES_COLA + nivel(q21, LIMITES_COLA);
+		e = e * NIVELES_COLA + nivel(q22, LIMITES_COLA);
+		e = e * 2 + (verde1 ? 1 : 0);
+		return e * NIVELES_TIEMPO + nivel(tiempo, LIMITES_TIEMPO);
+	}
+
+	private static int nivel(int x, int[] limites) {
+		int n = 0;
+		while (n < limites.length && x >= limites[n])
+			n++;
+		return n;
+	}
+
+	/*
+	 * Entrena la tabla por rondas: en cada ronda cada hilo parte de la tabla comun, juega sus episodios
+	 * en su propio simulador y al final se juntan las tablas de todos los hilos. Cada valor se pondera
+	 * por las veces que el hilo visito ese estado y accion en la ronda, asi un hilo que no paso por un
+	 * estado no arrastra su valor hacia el de partida; si ninguno lo visito se queda como estaba
+	 */
+	public static PoliticaQ entrenar(int hilos, int rondas, int episodios, int vias, int perdido, long semilla)
+			throws InterruptedException, ExecutionException {
+		ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+		float[] comun = new float[ESTADOS * ACCIONES];
+		try {
+			for (int r = 0; r < rondas; r++) {
+				final float[] base = comun;
+				List<Callable<Ronda>> tareas = new ArrayList<Callable<Ronda>>(hilos);
+				for (int h = 0; h < hilos; h++) {
+					final Simulador sim = new Simulador(vias, perdido, new SplittableRandom(semilla + r * (long) hilos + h));
+					final int ronda = r;
+					final int total = rondas;
+					tareas.add(new Callable<Ronda>() {
+						@Override
+						public Ronda call() {
+							Ronda local = new Ronda(base.clone());
+							//La exploracion baja de 0.3 a 0.05 a lo largo de las rondas
+							double epsilon = 0.3 - 0.25 * ronda / Math.max(1, total - 1);
+							for (int i = 0; i < episodios; i++)
+								sim.episodio(local.q, local.visitas, epsilon);
+							return local;
+						}
+					});
+				}
+				double[] suma = new double[ESTADOS * ACCIONES];
+				long[] visitas = new long[ESTADOS * ACCIONES];
+				for (Future<Ronda> f : ejecutor.invokeAll(tareas)) {
+					Ronda t = f.get();
+					for (int i = 0; i < suma.length; i++) {
+						suma[i] += (double) t.q[i] * t.visitas[i];
+						visitas[i] += t.visitas[i];
+					}
+				}
+				float[] nueva = new float[ESTADOS * ACCIONES];
+				for (int i = 0; i < nueva.length; i++)
+					nueva[i] = visitas[i] == 0 ? base[i] : (float) (suma[i] / visitas[i]);
+				comun = nueva;
+			}
+		} finally {
+			ejecutor.shutdownNow();
+		}
+		return new PoliticaQ(comun);
+	}
+
+	/*
+	 * Tabla de un hilo al final de una ronda y cuantas veces actualizo cada valor
+	 */
+	private static final class Ronda {
+		final float[] q;
+		final int[] visitas;
+
+		Ronda(float[] q) {
+			this.q = q;
+			this.visitas = new int[q.length];
+		}
+	}
+
+	public void guardar(String fichero) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fichero)));
+		try {
+			out.writeInt(ESTADOS);
+			out.writeInt(ACCIONES);
+			for (float v : q)
+				out.writeFloat(v);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static PoliticaQ cargar(String fichero) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fichero)));
+		try {
+			int estados = in.readInt();
+			int acciones = in.readInt();
+			if (estados != ESTADOS || acciones != ACCIONES)
+				throw new IOException("Tabla de " + estados + "x" + acciones + ", se esperaba " + ESTADOS + "x" + ACCIONES);
+			float[] q = new float[ESTADOS * ACCIONES];
+			for (int i = 0; i < q.length; i++)
+				q[i] = in.readFloat();
+			return new PoliticaQ(q);
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Entorno de entrenamiento: cuatro calles con llegadas de Poisson y una tasa distinta en cada
+	 * episodio. Cada paso es un segundo; cambiar bloquea la salida durante el amarillo y el rojo.
+	 */
+	static class Simulador {
+		private static final double SATURACION = 0.5; //Vehiculos por segundo y via en verde
+		private static final int PASOS = 900; //Segundos por episodio
+		private static final double APRENDIZAJE = 0.1;
+		private static final double DESCUENTO = 0.95;
+		private final int vias;
+		private final int perdido;
+		private final SplittableRandom rnd;
+		private final double[] cola = new double[4];
+		private final double[] llegadas = new double[4];
+		private boolean verde1;
+		private int tiempo;
+
+		Simulador(int vias, int perdido, SplittableRandom rnd) {
+			this.vias = vias;
+			this.perdido = perdido;
+			this.rnd = rnd;
+		}
+
+		void episodio(float[] q, int[] visitas, double epsilon) {
+			for (int i = 0; i < 4; i++) {
+				cola[i] = rnd.nextInt(8 * vias);
+				llegadas[i] = rnd.nextDouble() * 0.4 * vias;
+			}
+			verde1 = rnd.nextBoolean();
+			tiempo = 0;
+			int e = estadoActual();
+			for (int p = 0; p < PASOS; p++) {
+				int a;
+				if (rnd.nextDouble() < epsilon)
+					a = rnd.nextInt(ACCIONES);
+				else
+					a = q[e * ACCIONES + 1] > q[e * ACCIONES] ? 1 : 0;
+				double recompensa = a == 1 ? cambiar() : segundo();
+				int sig = estadoActual();
+				double objetivo = recompensa + DESCUENTO * Math.max(q[sig * ACCIONES], q[sig * ACCIONES + 1]);
+				int i = e * ACCIONES + a;
+				q[i] += APRENDIZAJE * (objetivo - q[i]);
+				visitas[i]++;
+				e = sig;
+			}
+		}
+
+		private int estadoActual() {
+			return estado((int) cola[0], (int) cola[1], (int) cola[2], (int) cola[3], verde1, tiempo);
+		}
+
+		/*
+		 * Cambio de luz: el amarillo y el rojo total se simulan seguidos, como en cambioLuz()
+		 */
+		private double cambiar() {
+			verde1 = !verde1;
+			tiempo = 0;
+			double r = 0;
+			for (int s = 0; s < perdido; s++)
+				r += avanzar(false);
+			return r + segundo();
+		}
+
+		private double segundo() {
+			tiempo++;
+			return avanzar(true);
+		}
+
+		/*
+		 * Avanza un segundo y devuelve la recompensa: menos el total de vehiculos esperando
+		 */
+		private double avanzar(boolean salida) {
+			double total = 0;
+			for (int i = 0; i < 4; i++) {
+				cola[i] += poisson(llegadas[i]);
+				if (salida && (i < 2) == verde1)
+					cola[i] = Math.max(0, cola[i] - SATURACION * vias);
+				total += cola[i];
+			}
+			return -total;
+		}
+
+		private int poisson(double media) {
+			double l = Math.exp(-media);
+			double p = rnd.nextDouble();
+			int k = 0;
+			while (p > l) {
+				p *= rnd.nextDouble();
+				k++;
+			}
+			return k;
+		}
+	}
+}
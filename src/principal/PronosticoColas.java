@@ -0,0 +1,123 @@
+package principal;
+
+/*
+ * Prevision de coches por via a corto plazo con Holt-Winters aditivo y tendencia amortiguada.
+ * La estacionalidad es de periodo ticks, pensado para la duracion de un ciclo de semaforo, de
+ * modo que se puede prever la cola unos ciclos por delante.
+ *
+ * Un solo objeto sirve a muchos cruces: cada cruce tiene un hueco y todo el estado esta en arrays
+ * planos indexados por (hueco * CARRILES + carril). Cada hueco solo lo actualiza el tick de su
+ * cruce, asi que no hacen falta cerrojos; la capacidad se fija al crearlo.
+ */
+public class PronosticoColas {
+	public static final int CARRILES = EstimadorCola.CALLES * EstimadorCola.MAX_VIAS;
+
+	private final int capacidad;
+	private final int periodo;
+	private final float alfa; //Nivel
+	private final float beta; //Tendencia
+	private final float gamma; //Estacionalidad
+	private final float fi; //Amortiguacion de la tendencia
+	private final float[] nivel;
+	private final float[] tendencia;
+	private final float[] estacion; //(hueco * CARRILES + carril) * periodo + fase
+	private final int[] paso; //Ticks vistos por hueco
+	private final byte[] vias; //Vias de cada calle en la ultima lectura, por hueco
+	private int ocupados;
+
+	/*
+	 * Nivel y tendencia se actualizan en cada tick y cada casilla de la estacion solo una vez por
+	 * periodo, por eso alfa y beta tienen que ser mucho menores que gamma
+	 */
+	public PronosticoColas(int capacidad, int periodo) {
+		this(capacidad, periodo, 0.02f, 0.005f, 0.3f, 0.98f);
+	}
+
+	public PronosticoColas(int capacidad, int periodo, float alfa, float beta, float gamma, float fi) {
+		if (capacidad <= 0 || periodo <= 0)
+			throw new IllegalArgumentException("Capacidad y periodo deben ser positivos");
+		this.capacidad = capacidad;
+		this.periodo = periodo;
+		this.alfa = alfa;
+		this.beta = beta;
+		this.gamma = gamma;
+		this.fi = fi;
+		nivel = new float[capacidad * CARRILES];
+		tendencia = new float[capacidad * CARRILES];
+		estacion = new float[capacidad * CARRILES * periodo];
+		paso = new int[capacidad];
+		vias = new byte[capacidad * EstimadorCola.CALLES];
+	}
+
+	/*
+	 * Reserva un hueco para un cruce
+	 */
+	public synchronized int reservar() {
+		if (ocupados == capacidad)
+			throw new IllegalStateException("Sin huecos libres, capacidad " + capacidad);
+		return ocupados++;
+	}
+
+	/*
+	 * Anade la lectura de un tick de las cuatro calles de un cruce
+	 */
+	public void actualizar(int hueco, Calle c11, Calle c12, Calle c21, Calle c22) {
+		int t = paso[hueco];
+		actualizar(hueco, 0, c11, t);
+		actualizar(hueco, 1, c12, t);
+		actualizar(hueco, 2, c21, t);
+		actualizar(hueco, 3, c22, t);
+		paso[hueco] = t + 1;
+	}
+
+	private void actualizar(int hueco, int k, Calle c, int t) {
+		int m = Math.min(c.numVias(), EstimadorCola.MAX_VIAS);
+		vias[hueco * EstimadorCola.CALLES + k] = (byte) m;
+		int fase = t % periodo;
+		for (int v = 0; v < m; v++) {
+			int i = hueco * CARRILES + k * EstimadorCola.MAX_VIAS + v;
+			int e = i * periodo + fase;
+			float x = c.via(v);
+			if (t == 0) {
+				nivel[i] = x;
+				tendencia[i] = 0;
+				continue;
+			}
+			float anterior = nivel[i];
+			nivel[i] = alfa * (x - estacion[e]) + (1 - alfa) * (anterior + fi * tendencia[i]);
+			tendencia[i] = beta * (nivel[i] - anterior) + (1 - beta) * fi * tendencia[i];
+			estacion[e] = gamma * (x - nivel[i]) + (1 - gamma) * estacion[e];
+		}
+	}
+
+	/*
+	 * Coches previstos en la via v de la calle k dentro de h ticks (h >= 1), o -1 si el hueco aun no
+	 * tiene lecturas
+	 */
+	public float prever(int hueco, int k, int v, int h) {
+		if (h <= 0)
+			throw new IllegalArgumentException("h no positivo: " + h);
+		if (paso[hueco] == 0)
+			return -1;
+		int i = hueco * CARRILES + k * EstimadorCola.MAX_VIAS + v;
+		//Suma de fi^1 .. fi^h
+		float amortiguado = fi == 1 ? h : (float) (fi * (1 - Math.pow(fi, h)) / (1 - fi));
+		int fase = (paso[hueco] - 1 + h) % periodo;
+		return Math.max(0, nivel[i] + amortiguado * tendencia[i] + estacion[i * periodo + fase]);
+	}
+
+	/*
+	 * Coches previstos en toda la calle k dentro de h ticks, o -1 si el hueco aun no tiene lecturas
+	 */
+	public float preverCalle(int hueco, int k, int h) {
+		if (h <= 0)
+			throw new IllegalArgumentException("h no positivo: " + h);
+		if (paso[hueco] == 0)
+			return -1;
+		float total = 0;
+		int m = vias[hueco * EstimadorCola.CALLES + k];
+		for (int v = 0; v < m; v++)
+			total += prever(hueco, k, v, h);
+		return total;
+	}
+}
@@ -0,0 +1,228 @@
+package principal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/*
+ * Puntos de control del estado de los cruces para arrancar rapido tras un reinicio. Cada cruce
+ * tiene un hueco fijo en un fichero proyectado en memoria con dos copias de TAM bytes; se escribe
+ * siempre sobre la mas antigua, asi que si el proceso muere a mitad de escritura queda la otra.
+ *
+ *   0  long secuencia        40 int  rojo1
+ *   8  int  cruce            44 int  rojo2
+ *   12 int  crc              48 long version de los umbrales
+ *   16 long instante         56 int  umbralCola, umbralGiro, umbralGiroTotal,
+ *   24 long inicio de fase           minRojo, maxRojo, maxA, maxR
+ *   32 byte modos[8] (SC y SG de c11, c12, c21, c22)
+ *                            84 byte eje al que iba el cambio en curso, 0 si no habia
+ *
+ * Guardar no toma el cerrojo del cruce, que cambioLuz() tiene durante todo el ambar y el despeje,
+ * asi que puede pillar un cambio a medias; restaurar pone entonces todo en rojo y el tick del cruce
+ * da el verde al acabar el despeje.
+ */
+public class PuntoControl implements Closeable {
+	static final int TAM = 96;
+	private static final int HUECO = 2 * TAM;
+	private static final int CABECERA = 16;
+	private static final int MAGICO = 0x53454D50; //"SEMP"
+	private static final int HUECOS_INICIALES = 1024;
+
+	private final RandomAccessFile fichero;
+	private final FileChannel canal;
+	private MappedByteBuffer b;
+	private int capacidad;
+	private final Map<Integer, Integer> huecos = new HashMap<Integer, Integer>(); //cruce -> hueco
+	private final BitSet ocupados = new BitSet();
+	private final List<GestionCruce> cruces = new CopyOnWriteArrayList<GestionCruce>();
+	private final ScheduledExecutorService guardado = Executors.newSingleThreadScheduledExecutor();
+	//Solo se escribe desde un hilo a la vez (guardar es synchronized), asi que se reutilizan
+	private final byte[] registro = new byte[TAM];
+	private final ByteBuffer rb = ByteBuffer.wrap(registro);
+	private final CRC32 crc = new CRC32();
+	private Umbrales ultimos = Umbrales.POR_DEFECTO; //Los cruces suelen compartir umbrales: se reutiliza la tabla ya compilada
+
+	public PuntoControl(String ruta) throws IOException {
+		fichero = new RandomAccessFile(ruta, "rw");
+		canal = fichero.getChannel();
+		if (canal.size() == 0) {
+			proyectar(HUECOS_INICIALES);
+			b.putInt(4, HUECOS_INICIALES);
+			b.putInt(0, MAGICO);
+		} else {
+			proyectar((int) ((canal.size() - CABECERA) / HUECO));
+			if (b.getInt(0) != MAGICO) {
+				close();
+				throw new IOException(ruta + " no es un fichero de puntos de control");
+			}
+			//Indice de huecos ocupados: cualquiera de las dos copias valida dice de que cruce es
+			for (int h = 0; h < capacidad; h++) {
+				int c = copiaValida(h);
+				if (c >= 0) {
+					huecos.put(b.getInt(c + 8), h);
+					ocupados.set(h);
+				}
+			}
+		}
+	}
+
+	private void proyectar(int huecos) throws IOException {
+		capacidad = huecos;
+		b = canal.map(FileChannel.MapMode.READ_WRITE, 0, CABECERA + (long) huecos * HUECO);
+	}
+
+	public void registrar(GestionCruce gc) {
+		cruces.add(gc);
+	}
+
+	/*
+	 * Guarda todos los cruces registrados cada periodo (segundos)
+	 */
+	public void iniciar(int periodo) {
+		guardado.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					guardarTodos();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, periodo, periodo, TimeUnit.SECONDS);
+	}
+
+	public void parar() {
+		guardado.shutdown();
+	}
+
+	public void guardarTodos() throws IOException {
+		for (GestionCruce gc : cruces)
+			guardar(gc);
+	}
+
+	/*
+	 * Guarda el estado de un cruce sin bloquear su tick: los campos se leen tal cual estan. El eje de
+	 * destino se mira antes y despues de los modos para no perderlo si el cambio empieza o acaba entre medias
+	 */
+	public synchronized void guardar(GestionCruce gc) throws IOException {
+		int h = hueco(gc.getId());
+		int base = CABECERA + h * HUECO;
+		int c = copiaValida(h);
+		long secuencia = c < 0 ? 1 : b.getLong(c) + 1;
+		int destino = c == base ? base + TAM : base;
+		Umbrales u = gc.getUmbrales();
+		int destinoCambio = gc.getDestinoCambio();
+		rb.clear();
+		rb.putLong(secuencia).putInt(gc.getId()).putInt(0);
+		rb.putLong(System.currentTimeMillis()).putLong(gc.getInicioFase());
+		rb.put((byte) gc.getC11().SC.getModo()).put((byte) gc.getC11().SG.getModo());
+		rb.put((byte) gc.getC12().SC.getModo()).put((byte) gc.getC12().SG.getModo());
+		rb.put((byte) gc.getC21().SC.getModo()).put((byte) gc.getC21().SG.getModo());
+		rb.put((byte) gc.getC22().SC.getModo()).put((byte) gc.getC22().SG.getModo());
+		rb.putInt(gc.getRojo1()).putInt(gc.getRojo2());
+		rb.putLong(u.getVersion()).putInt(u.getUmbralCola()).putInt(u.getUmbralGiro()).putInt(u.getUmbralGiroTotal());
+		rb.putInt(u.getMinRojo()).putInt(u.getMaxRojo()).putInt(u.getMaxA()).putInt(u.getMaxR());
+		if (destinoCambio == 0)
+			destinoCambio = gc.getDestinoCambio();
+		rb.put((byte) destinoCambio);
+		rb.putInt(12, crc(registro));
+		for (int i = 0; i < TAM; i++)
+			b.put(destino + i, registro[i]);
+	}
+
+	/*
+	 * Devuelve el cruce al ultimo estado guardado. Devuelve false si no hay ninguno valido
+	 */
+	public synchronized boolean restaurar(GestionCruce gc) {
+		Integer h = huecos.get(gc.getId());
+		if (h == null)
+			return false;
+		int c = copiaValida(h);
+		if (c < 0)
+			return false;
+		long instante = b.getLong(c + 16);
+		long inicioFase = b.getLong(c + 24);
+		int[] modos = new int[8];
+		for (int i = 0; i < 8; i++)
+			modos[i] = b.get(c + 32 + i);
+		Umbrales u = ultimos;
+		if (u.getVersion() != b.getLong(c + 48) || u.getUmbralCola() != b.getInt(c + 56) || u.getUmbralGiro() != b.getInt(c + 60)
+				|| u.getUmbralGiroTotal() != b.getInt(c + 64) || u.getMinRojo() != b.getInt(c + 68) || u.getMaxRojo() != b.getInt(c + 72)
+				|| u.getMaxA() != b.getInt(c + 76) || u.getMaxR() != b.getInt(c + 80)) {
+			u = new Umbrales(b.getLong(c + 48), b.getInt(c + 56), b.getInt(c + 60), b.getInt(c + 64),
+					b.getInt(c + 68), b.getInt(c + 72), b.getInt(c + 76), b.getInt(c + 80));
+			ultimos = u;
+		}
+		//El tiempo que el proceso estuvo parado cuenta como tiempo en la fase actual
+		int parado = (int) Math.max(0, (System.currentTimeMillis() - instante) / 1000);
+		gc.restaurar(modos, b.getInt(c + 40), b.getInt(c + 44), inicioFase, parado, b.get(c + 84), u);
+		return true;
+	}
+
+	/*
+	 * Posicion de la copia valida mas reciente del hueco, o -1 si ninguna lo es
+	 */
+	private int copiaValida(int h) {
+		int a = CABECERA + h * HUECO;
+		int z = a + TAM;
+		boolean va = valida(a);
+		boolean vz = valida(z);
+		if (va && vz)
+			return b.getLong(a) >= b.getLong(z) ? a : z;
+		return va ? a : vz ? z : -1;
+	}
+
+	private boolean valida(int p) {
+		if (b.getLong(p) == 0)
+			return false;
+		for (int i = 0; i < TAM; i++)
+			registro[i] = b.get(p + i);
+		int guardado = rb.getInt(12);
+		rb.putInt(12, 0);
+		return crc(registro) == guardado;
+	}
+
+	private int crc(byte[] r) {
+		crc.reset();
+		crc.update(r, 0, TAM);
+		return (int) crc.getValue();
+	}
+
+	private int hueco(int cruce) throws IOException {
+		Integer h = huecos.get(cruce);
+		if (h != null)
+			return h;
+		//El primero libre: al reabrir puede haber huecos sin copia valida por debajo de los ocupados
+		int nuevo = ocupados.nextClearBit(0);
+		if (nuevo >= capacidad) {
+			proyectar(capacidad * 2);
+			b.putInt(4, capacidad);
+		}
+		huecos.put(cruce, nuevo);
+		ocupados.set(nuevo);
+		return nuevo;
+	}
+
+	public void sincronizar() {
+		b.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		guardado.shutdownNow();
+		canal.close();
+		fichero.close();
+	}
+}
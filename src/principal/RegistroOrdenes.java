@@ -0,0 +1,317 @@
+package principal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Ordenes a los semaforos con numero de secuencia, apuntadas en un diario local y enviadas desde un
+ * hilo propio, que reintenta cada una con espera exponencial hasta que el controlador la confirma.
+ * El tick solo apunta la orden y despierta al hilo: nunca espera a la red.
+ *
+ * Cada orden deja el estado de una posicion, asi que la ultima anula a las anteriores: por cada
+ * cruce y posicion se guarda solo la ultima pedida, y si llega otra antes de confirmar la anterior
+ * esta se da por descartada. La secuencia va en la cabecera X-Secuencia para que el controlador
+ * ignore un reintento de algo que ya aplico.
+ *
+ * Diario de registros de TAM bytes proyectado en memoria por segmentos, como Diario:
+ *
+ *   0  long  secuencia
+ *   8  long  instante (ms)
+ *   16 int   cruce
+ *   20 byte  tipo (0 = registro vacio, se escribe el ultimo)
+ *   21 byte  posicion
+ *   22 short modo
+ *   24 int   intentos
+ *
+ * Al reabrir se sigue con la secuencia mas alta y las ordenes sin confirmar ni descartar vuelven a
+ * estar pendientes en cuanto su cruce se registra.
+ */
+public class RegistroOrdenes implements Closeable {
+	public static final byte ORDEN = 1;
+	public static final byte CONFIRMADA = 2;
+	public static final byte DESCARTADA = 3;
+	public static final int POSICIONES = 8;
+	static final int TAM = 32;
+	private static final int MAGICO = 0x53454D4F; //"SEMO"
+	private static final int REGISTROS_SEGMENTO = 1 << 16; //2 MB por segmento
+	private static final long ESPERA_MIN = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final long ESPERA_MAX = TimeUnit.SECONDS.toNanos(5);
+
+	private final RandomAccessFile fichero;
+	private final FileChannel canal;
+	private volatile MappedByteBuffer[] segmentos = new MappedByteBuffer[0];
+	private final AtomicLong siguiente;
+	private final AtomicLong secuencia;
+	private final Map<Integer, long[]> recuperadas = new HashMap<Integer, long[]>(); //cruce -> orden por posicion
+
+	//Un hueco por cruce y posicion. pedida = secuencia << 8 | modo, la escribe el tick
+	private final GestionCruce[] cruces;
+	private final AtomicLongArray pedida;
+	//Solo los toca el hilo de envio
+	private final long[] enCurso;
+	private final long[] confirmada;
+	private final long[] proximoIntento;
+	private final long[] espera;
+	private final int[] intentos;
+	private volatile int ocupados;
+	private volatile long confirmadas;
+	private volatile long reintentos;
+	private volatile long descartadas;
+	private volatile boolean cerrado;
+	private final Thread hilo;
+
+	public RegistroOrdenes(String ruta, int capacidad) throws IOException {
+		if (capacidad <= 0)
+			throw new IllegalArgumentException("Capacidad no valida: " + capacidad);
+		fichero = new RandomAccessFile(ruta, "rw");
+		canal = fichero.getChannel();
+		MappedByteBuffer s0 = segmento(0);
+		if (s0.getInt(0) == 0) {
+			s0.putInt(4, TAM);
+			s0.putInt(0, MAGICO);
+		} else if (s0.getInt(0) != MAGICO || s0.getInt(4) != TAM) {
+			close();
+			throw new IOException(ruta + " no es un registro de ordenes de " + TAM + " bytes");
+		}
+		siguiente = new AtomicLong(1);
+		secuencia = new AtomicLong(recuperar());
+		cruces = new GestionCruce[capacidad];
+		pedida = new AtomicLongArray(capacidad * POSICIONES);
+		enCurso = new long[capacidad * POSICIONES];
+		confirmada = new long[capacidad * POSICIONES];
+		proximoIntento = new long[capacidad * POSICIONES];
+		espera = new long[capacidad * POSICIONES];
+		intentos = new int[capacidad * POSICIONES];
+		hilo = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				enviar();
+			}
+		}, "ordenes");
+		hilo.setDaemon(true);
+		hilo.start();
+	}
+
+	/*
+	 * Recorre el diario: deja siguiente tras el ultimo registro escrito, guarda la ultima orden abierta
+	 * de cada cruce y posicion y devuelve la secuencia mas alta. Como en Diario.Cursor, se saltan los
+	 * huecos: un hilo que se corto entre reservar el registro y escribir su tipo deja uno a 0 sin que
+	 * eso sea el final
+	 */
+	private long recuperar() throws IOException {
+		long maxSecuencia = 0;
+		long n = canal.size() / TAM;
+		long ultimo = 0;
+		for (long i = 1; i < n; i++) {
+			MappedByteBuffer b = segmento((int) (i / REGISTROS_SEGMENTO));
+			int p = (int) (i % REGISTROS_SEGMENTO) * TAM;
+			byte tipo = b.get(p + 20);
+			if (tipo == 0)
+				continue;
+			ultimo = i;
+			long s = b.getLong(p);
+			maxSecuencia = Math.max(maxSecuencia, s);
+			int posicion = b.get(p + 21);
+			long[] abiertas = recuperadas.get(b.getInt(p + 16));
+			if (abiertas == null) {
+				abiertas = new long[POSICIONES];
+				recuperadas.put(b.getInt(p + 16), abiertas);
+			}
+			if (tipo == ORDEN)
+				abiertas[posicion] = s << 8 | (b.getShort(p + 22) & 0xFF);
+			else if (abiertas[posicion] >>> 8 == s)
+				abiertas[posicion] = 0;
+		}
+		siguiente.set(ultimo + 1);
+		return maxSecuencia;
+	}
+
+	private MappedByteBuffer segmento(int s) throws IOException {
+		MappedByteBuffer[] actuales = segmentos;
+		if (s < actuales.length)
+			return actuales[s];
+		synchronized (this) {
+			actuales = segmentos;
+			if (s < actuales.length)
+				return actuales[s];
+			MappedByteBuffer[] nuevos = new MappedByteBuffer[s + 1];
+			System.arraycopy(actuales, 0, nuevos, 0, actuales.length);
+			for (int k = actuales.length; k <= s; k++)
+				nuevos[k] = canal.map(FileChannel.MapMode.READ_WRITE, (long) k * REGISTROS_SEGMENTO * TAM, (long) REGISTROS_SEGMENTO * TAM);
+			segmentos = nuevos;
+			return nuevos[s];
+		}
+	}
+
+	private void anotar(long s, int cruce, byte tipo, int posicion, int modo, int intentos) throws IOException {
+		long i = siguiente.getAndIncrement();
+		MappedByteBuffer b = segmento((int) (i / REGISTROS_SEGMENTO));
+		int p = (int) (i % REGISTROS_SEGMENTO) * TAM;
+		b.putLong(p, s);
+		b.putLong(p + 8, System.currentTimeMillis());
+		b.putInt(p + 16, cruce);
+		b.put(p + 21, (byte) posicion);
+		b.putShort(p + 22, (short) modo);
+		b.putInt(p + 24, intentos);
+		b.put(p + 20, tipo);
+	}
+
+	/*
+	 * Reserva un hueco para el cruce; lo llama GestionCruce.setOrdenes. Si el diario tenia ordenes
+	 * del cruce sin confirmar se vuelven a enviar
+	 */
+	synchronized int reservar(GestionCruce gc) {
+		if (ocupados == cruces.length)
+			throw new IllegalStateException("Sin huecos libres, capacidad " + cruces.length);
+		int h = ocupados;
+		cruces[h] = gc;
+		long[] abiertas = recuperadas.remove(gc.getId());
+		if (abiertas != null)
+			for (int posicion = 0; posicion < POSICIONES; posicion++)
+				pedida.set(h * POSICIONES + posicion, abiertas[posicion]);
+		ocupados = h + 1;
+		LockSupport.unpark(hilo);
+		return h;
+	}
+
+	/*
+	 * Apunta una orden y la deja al hilo de envio. No bloquea ni crea objetos; devuelve su secuencia
+	 */
+	long ordenar(int hueco, int modo, int posicion) {
+		if (posicion < 0 || posicion >= POSICIONES || modo < 0 || modo > 0xFF)
+			throw new IllegalArgumentException("Orden no valida: modo " + modo + ", posicion " + posicion);
+		long s = secuencia.incrementAndGet();
+		try {
+			anotar(s, cruces[hueco].getId(), ORDEN, posicion, modo, 0);
+		} catch (IOException e) {
+			e.printStackTrace(); //Se envia igual, aunque no quede en el diario
+		}
+		pedida.set(hueco * POSICIONES + posicion, s << 8 | modo);
+		LockSupport.unpark(hilo);
+		return s;
+	}
+
+	private void enviar() {
+		while (!cerrado) {
+			long ahora = System.nanoTime();
+			long dormir = Long.MAX_VALUE;
+			int n = ocupados * POSICIONES;
+			for (int i = 0; i < n && !cerrado; i++) {
+				long p = pedida.get(i);
+				long s = p >>> 8;
+				if (s == 0 || s == confirmada[i])
+					continue;
+				GestionCruce gc = cruces[i / POSICIONES];
+				int posicion = i % POSICIONES;
+				if (s != enCurso[i]) {
+					//Orden nueva; la anterior, si no llego, ya no hace falta
+					if (enCurso[i] != 0 && enCurso[i] != confirmada[i]) {
+						apuntar(enCurso[i], gc, DESCARTADA, posicion, 0, intentos[i]);
+						descartadas++;
+					}
+					enCurso[i] = s;
+					intentos[i] = 0;
+					espera[i] = ESPERA_MIN;
+					proximoIntento[i] = ahora;
+				}
+				if (proximoIntento[i] - ahora > 0) {
+					dormir = Math.min(dormir, proximoIntento[i] - ahora);
+					continue;
+				}
+				int modo = (int) (p & 0xFF);
+				boolean correcto = gc.enviarOrden(modo, posicion, s);
+				ahora = System.nanoTime();
+				intentos[i]++;
+				if (correcto) {
+					confirmada[i] = s;
+					apuntar(s, gc, CONFIRMADA, posicion, modo, intentos[i]);
+					confirmadas++;
+				} else {
+					if (intentos[i] > 1)
+						reintentos++;
+					proximoIntento[i] = ahora + espera[i];
+					espera[i] = Math.min(2 * espera[i], ESPERA_MAX);
+					dormir = Math.min(dormir, espera[i]);
+				}
+			}
+			if (dormir == Long.MAX_VALUE)
+				LockSupport.park(this);
+			else
+				LockSupport.parkNanos(this, dormir);
+		}
+	}
+
+	private void apuntar(long s, GestionCruce gc, byte tipo, int posicion, int modo, int intentos) {
+		try {
+			anotar(s, gc.getId(), tipo, posicion, modo, intentos);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public long getSecuencia() {
+		return secuencia.get();
+	}
+
+	public long getConfirmadas() {
+		return confirmadas;
+	}
+
+	public long getReintentos() {
+		return reintentos;
+	}
+
+	public long getDescartadas() {
+		return descartadas;
+	}
+
+	/*
+	 * Ordenes pedidas que el controlador aun no ha confirmado. Aproximado mientras el hilo de envio trabaja
+	 */
+	public int pendientes() {
+		int resul = 0;
+		int n = ocupados * POSICIONES;
+		for (int i = 0; i < n; i++) {
+			long s = pedida.get(i) >>> 8;
+			if (s != 0 && s != confirmada[i])
+				resul++;
+		}
+		return resul;
+	}
+
+	public long registros() {
+		return siguiente.get() - 1;
+	}
+
+	/*
+	 * Fuerza a disco lo escrito hasta ahora
+	 */
+	public void sincronizar() {
+		for (MappedByteBuffer b : segmentos)
+			b.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		cerrado = true;
+		if (hilo != null) {
+			LockSupport.unpark(hilo);
+			try {
+				hilo.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		canal.close();
+		fichero.close();
+	}
+}
@@ -0,0 +1,11 @@
+package principal;
+
+/*
+ * Tiempo que usa GestionCruce. En funcionamiento normal es el del sistema; al reproducir un
+ * diario es un reloj virtual que avanza sin esperar
+ */
+public interface Reloj {
+	long ahora(); //ms
+
+	void esperar(int segundos);
+}
@@ -0,0 +1,13 @@
+package principal;
+
+public class RelojSistema implements Reloj {
+	@Override
+	public long ahora() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public void esperar(int segundos) {
+		GestionCruce.esperar(segundos);
+	}
+}
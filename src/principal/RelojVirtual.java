@@ -0,0 +1,26 @@
+package principal;
+
+/*
+ * Reloj que solo avanza cuando se le pide: esperar() suma el tiempo sin dormir
+ */
+public class RelojVirtual implements Reloj {
+	private long ahora;
+
+	public RelojVirtual(long inicio) {
+		ahora = inicio;
+	}
+
+	@Override
+	public long ahora() {
+		return ahora;
+	}
+
+	@Override
+	public void esperar(int segundos) {
+		ahora += segundos * 1000L;
+	}
+
+	public void fijar(long instante) {
+		ahora = instante;
+	}
+}
@@ -0,0 +1,301 @@
+package principal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Reproduce de forma determinista lo que vio un cruce a partir de su Diario. Los conteos grabados
+ * se pasan por calles() y por la logica de decision de un GestionCruce sin temporizadores, sobre un
+ * reloj virtual, tan rapido como permita la CPU. Se compara tick a tick la decision y las ordenes
+ * grabadas con las que salen ahora, de modo que sirve para probar cambios de umbrales o de politica
+ * contra datos reales.
+ *
+ * Las pulsaciones de peatones se apuntaron en el tick que las recogio y se vuelven a dar en el mismo.
+ * Las prioridades se atienden en el instante de la peticion, en el hilo del reproductor, y sus
+ * ordenes se comparan aparte; si en el cruce grabado se cruzo con un tick la comparacion es aproximada.
+ * El detector, el estimador, el plan fijo y los peatones no se graban: hay que configurarlos igual
+ * que el cruce grabado, con objetos nuevos.
+ */
+public class Reproductor {
+	private static final int MAX_DETALLES = 100;
+	private final Diario diario;
+	private final int cruce;
+	private final Umbrales umbrales;
+	private final PoliticaControl politica;
+	private DetectorAnomalias detector;
+	private EstimadorCola estimador;
+	private PlanFijo planFijo;
+	private LlamadasPeaton peatones;
+
+	//Tick grabado que se esta reuniendo
+	private final int[][] vias = new int[4][Diario.MAX_VALORES];
+	private final int[] numVias = new int[4];
+	private int lecturas;
+	private long instante;
+	private int decisionGrabada;
+	private int[] ordenesGrabadas = new int[8];
+	private int numGrabadas;
+	private boolean enPrioridad; //Las ordenes grabadas que llegan son las de una prioridad, no las de un tick
+
+	//Ordenes que envia el cruce reproducido
+	private int[] ordenes = new int[8];
+	private int numOrdenes;
+
+	public Reproductor(Diario diario, int cruce, Umbrales umbrales, PoliticaControl politica) {
+		this.diario = diario;
+		this.cruce = cruce;
+		this.umbrales = umbrales;
+		this.politica = politica;
+	}
+
+	public void setDetector(DetectorAnomalias detector) {
+		this.detector = detector;
+	}
+
+	public void setEstimador(EstimadorCola estimador) {
+		this.estimador = estimador;
+	}
+
+	public void setPlanFijo(PlanFijo planFijo) {
+		this.planFijo = planFijo;
+	}
+
+	public void setPeatones(LlamadasPeaton peatones) {
+		this.peatones = peatones;
+	}
+
+	public Informe reproducir() throws IOException {
+		RelojVirtual reloj = new RelojVirtual(0);
+		ConexionExterna captura = new ConexionExterna() {
+			@Override
+			public boolean postDatos(int modo, int posicion, long secuencia) {
+				if (numOrdenes == ordenes.length)
+					ordenes = Arrays.copyOf(ordenes, numOrdenes * 2);
+				ordenes[numOrdenes++] = orden(modo, posicion);
+				return true;
+			}
+		};
+		FuenteDatos fuente = new FuenteDatos() {
+			@Override
+			public void leer(Calle c11, Calle c12, Calle c21, Calle c22) {
+				cargar(c11, 0);
+				cargar(c12, 1);
+				cargar(c21, 2);
+				cargar(c22, 3);
+			}
+		};
+		GestionCruce gc = new GestionCruce(cruce, null, captura, fuente, reloj);
+		if (umbrales != null)
+			gc.setUmbrales(umbrales);
+		gc.setPolitica(politica);
+		gc.setDetector(detector);
+		gc.setEstimador(estimador);
+		gc.setPlanFijo(planFijo);
+		if (peatones != null)
+			gc.setPeatones(peatones);
+
+		Informe informe = new Informe();
+		Diario.Cursor c = diario.cursor();
+		boolean primero = true;
+		while (c.siguiente()) {
+			if (c.getCruce() != cruce)
+				continue;
+			if (c.getTipo() == Diario.LECTURA) {
+				if (enPrioridad)
+					cerrarPrioridad(informe);
+				if (lecturas == 4 || (lecturas > 0 && numGrabadas > 0)) {
+					procesar(gc, reloj, primero, informe);
+					primero = false;
+				}
+				if (lecturas == 0) {
+					instante = c.getInstante();
+					decisionGrabada = -1;
+					numGrabadas = 0;
+				}
+				int k = c.getCalle() - 1;
+				if (k >= 0 && k < 4) {
+					numVias[k] = c.numValores();
+					for (int v = 0; v < numVias[k]; v++)
+						vias[k][v] = c.valor(v);
+				}
+				lecturas++;
+			} else if (c.getTipo() == Diario.DECISION) {
+				decisionGrabada = c.valor(0);
+			} else if (c.getTipo() == Diario.ACTUACION) {
+				if (numGrabadas == ordenesGrabadas.length)
+					ordenesGrabadas = Arrays.copyOf(ordenesGrabadas, numGrabadas * 2);
+				ordenesGrabadas[numGrabadas++] = orden(c.valor(0), c.getCalle());
+			} else if (c.getTipo() == Diario.PULSACION) {
+				//Entra en la cola y la recoge el tick que se esta reuniendo, como en el cruce grabado
+				if (peatones != null)
+					peatones.pulsar(c.getCalle(), c.getInstante());
+			} else if (c.getTipo() == Diario.PRIORIDAD) {
+				if (lecturas > 0) {
+					procesar(gc, reloj, primero, informe);
+					primero = false;
+				}
+				if (enPrioridad)
+					cerrarPrioridad(informe);
+				if (!primero)
+					atenderPrioridad(gc, reloj, c.getInstante(), c.getCalle(), c.entero(0));
+			}
+		}
+		if (lecturas > 0)
+			procesar(gc, reloj, primero, informe);
+		if (enPrioridad)
+			cerrarPrioridad(informe);
+		return informe;
+	}
+
+	/*
+	 * Atiende una prioridad grabada; sus ordenes se comparan con las grabadas que la siguen
+	 */
+	private void atenderPrioridad(GestionCruce gc, RelojVirtual reloj, long instante, int calle, int duracion) {
+		this.instante = instante;
+		decisionGrabada = -1;
+		numGrabadas = 0;
+		numOrdenes = 0;
+		reloj.fijar(Math.max(instante, reloj.ahora()));
+		gc.pedirPrioridad(calle, duracion);
+		gc.atenderPrioridad();
+		enPrioridad = true;
+	}
+
+	private void cerrarPrioridad(Informe informe) {
+		informe.prioridades++;
+		comparar(-1, informe);
+		enPrioridad = false;
+	}
+
+	/*
+	 * Pasa un tick grabado por el cruce y lo compara con lo que se grabo
+	 */
+	private void procesar(GestionCruce gc, RelojVirtual reloj, boolean primero, Informe informe) {
+		numOrdenes = 0;
+		if (primero) {
+			reloj.fijar(instante);
+			gc.calles();
+			gc.elegirFase();
+		} else {
+			//Segundos que conto el temporizador de tiempos entre el tick anterior (y su cambioLuz) y este
+			long segundos = Math.round((instante - reloj.ahora()) / 1000.0);
+			for (long s = 0; s < segundos; s++)
+				gc.contarTiempo();
+			reloj.fijar(Math.max(instante, reloj.ahora()));
+			gc.tick();
+		}
+		informe.ticks++;
+		comparar(primero ? -1 : gc.getUltimaDecision(), informe);
+		lecturas = 0;
+	}
+
+	private void comparar(int decision, Informe informe) {
+		boolean igual = decision == decisionGrabada && numOrdenes == numGrabadas
+				&& Arrays.equals(Arrays.copyOf(ordenes, numOrdenes), Arrays.copyOf(ordenesGrabadas, numGrabadas));
+		if (!igual) {
+			informe.divergencias++;
+			if (informe.detalles.size() < MAX_DETALLES)
+				informe.detalles.add(new Divergencia(instante, decisionGrabada, Arrays.copyOf(ordenesGrabadas, numGrabadas),
+						decision, Arrays.copyOf(ordenes, numOrdenes)));
+		}
+	}
+
+	private void cargar(Calle c, int k) {
+		c.reset();
+		for (int v = 0; v < numVias[k]; v++)
+			c.add(vias[k][v]);
+	}
+
+	private static int orden(int modo, int posicion) {
+		return modo << 8 | posicion;
+	}
+
+	private static String ordenes(int[] o) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < o.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append("modo ").append(o[i] >> 8).append(" pos ").append(o[i] & 0xFF);
+		}
+		return sb.append("]").toString();
+	}
+
+	public static class Informe {
+		private long ticks;
+		private long prioridades;
+		private long divergencias;
+		private final List<Divergencia> detalles = new ArrayList<Divergencia>();
+
+		public long getTicks() {
+			return ticks;
+		}
+
+		public long getPrioridades() {
+			return prioridades;
+		}
+
+		public long getDivergencias() {
+			return divergencias;
+		}
+
+		public List<Divergencia> getDetalles() {
+			return detalles;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(ticks).append(" ticks reproducidos, ").append(prioridades).append(" prioridades, ")
+					.append(divergencias).append(" divergencias\n");
+			for (Divergencia d : detalles)
+				sb.append("  ").append(d).append('\n');
+			return sb.toString();
+		}
+	}
+
+	public static class Divergencia {
+		private final long instante;
+		private final int decisionGrabada;
+		private final int[] ordenesGrabadas;
+		private final int decision;
+		private final int[] ordenes;
+
+		Divergencia(long instante, int decisionGrabada, int[] ordenesGrabadas, int decision, int[] ordenes) {
+			this.instante = instante;
+			this.decisionGrabada = decisionGrabada;
+			this.ordenesGrabadas = ordenesGrabadas;
+			this.decision = decision;
+			this.ordenes = ordenes;
+		}
+
+		public long getInstante() {
+			return instante;
+		}
+
+		@Override
+		public String toString() {
+			return instante + ": grabado decision " + decisionGrabada + " " + ordenes(ordenesGrabadas)
+					+ ", reproducido decision " + decision + " " + ordenes(ordenes);
+		}
+	}
+
+	/*
+	 * Uso: Reproductor <diario> <cruce> [fichero de umbrales]
+	 */
+	public static void main(String[] args) throws IOException {
+		Diario d = new Diario(args[0]);
+		Umbrales u = null;
+		if (args.length > 2) {
+			ConfiguracionUmbrales conf = new ConfiguracionUmbrales(args[2]);
+			conf.recargar();
+			u = conf.getActual();
+		}
+		long t = System.nanoTime();
+		Informe informe = new Reproductor(d, Integer.parseInt(args[1]), u, null).reproducir();
+		System.out.print(informe);
+		System.out.println("Tiempo: " + (System.nanoTime() - t) / 1000000 + " ms");
+		d.close();
+	}
+}
@@ -0,0 +1,171 @@
+package principal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Un segmento de AlmacenConteos proyectado en memoria en solo lectura. Las busquedas van por el
+ * indice ordenado y las columnas se decodifican directamente del fichero proyectado, sin copiarlas.
+ */
+public class SegmentoConteos {
+	private final File fichero;
+	private final MappedByteBuffer b;
+	private final int numSeries;
+	private final long inicio;
+
+	/*
+	 * Recibe cada muestra de un recorrido sin crear objetos
+	 */
+	public interface Visitante {
+		void muestra(long instante, int valor);
+	}
+
+	public SegmentoConteos(File fichero) throws IOException {
+		this.fichero = fichero;
+		try (RandomAccessFile raf = new RandomAccessFile(fichero, "r"); FileChannel canal = raf.getChannel()) {
+			b = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+		}
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		if (b.getInt(0) != AlmacenConteos.MAGICO)
+			throw new IOException(fichero + " no es un segmento de conteos");
+		numSeries = b.getInt(4);
+		inicio = b.getLong(8);
+	}
+
+	public File getFichero() {
+		return fichero;
+	}
+
+	public long getInicio() {
+		return inicio;
+	}
+
+	public int numSeries() {
+		return numSeries;
+	}
+
+	public long clave(int serie) {
+		return b.getLong(entrada(serie));
+	}
+
+	public int muestras(int serie) {
+		return b.getInt(entrada(serie) + 8);
+	}
+
+	public long primero(int serie) {
+		return b.getLong(entrada(serie) + 12);
+	}
+
+	public long ultimo(int serie) {
+		return b.getLong(entrada(serie) + 20);
+	}
+
+	private static int entrada(int serie) {
+		return AlmacenConteos.CABECERA + serie * AlmacenConteos.ENTRADA;
+	}
+
+	/*
+	 * Posicion de la serie en el indice, o -1 si el segmento no la tiene
+	 */
+	public int buscar(long clave) {
+		int lo = 0;
+		int hi = numSeries - 1;
+		while (lo <= hi) {
+			int m = (lo + hi) >>> 1;
+			long k = clave(m);
+			if (k < clave)
+				lo = m + 1;
+			else if (k > clave)
+				hi = m - 1;
+			else
+				return m;
+		}
+		return -1;
+	}
+
+	public void recorrer(long clave, long desde, long hasta, Visitante v) {
+		int s = buscar(clave);
+		if (s >= 0 && primero(s) < hasta && ultimo(s) >= desde)
+			recorrerSerie(s, desde, hasta, v);
+	}
+
+	/*
+	 * Decodifica la serie entera en dos arrays, que deben tener al menos muestras(serie) huecos
+	 */
+	public int decodificar(int serie, long[] instantes, int[] valores) {
+		int e = entrada(serie);
+		int n = b.getInt(e + 8);
+		int pi = (int) b.getLong(e + 28);
+		int pv = (int) b.getLong(e + 36);
+		long instante = inicio;
+		long delta = 0;
+		for (int j = 0; j < n; j++) {
+			long x = 0;
+			int desp = 0;
+			byte c;
+			do {
+				c = b.get(pi++);
+				x |= (long) (c & 0x7F) << desp;
+				desp += 7;
+			} while (c < 0);
+			delta += AlmacenConteos.deszigzag(x);
+			instante += delta;
+			instantes[j] = instante;
+		}
+		int valor = 0;
+		for (int j = 0; j < n; j++) {
+			long x = 0;
+			int desp = 0;
+			byte c;
+			do {
+				c = b.get(pv++);
+				x |= (long) (c & 0x7F) << desp;
+				desp += 7;
+			} while (c < 0);
+			valor += (int) AlmacenConteos.deszigzag(x);
+			valores[j] = valor;
+		}
+		return n;
+	}
+
+	/*
+	 * Decodifica a la vez la columna de instantes y la de valores
+	 */
+	public void recorrerSerie(int serie, long desde, long hasta, Visitante v) {
+		int e = entrada(serie);
+		int n = b.getInt(e + 8);
+		int pi = (int) b.getLong(e + 28);
+		int pv = (int) b.getLong(e + 36);
+		long instante = inicio;
+		long delta = 0;
+		int valor = 0;
+		for (int j = 0; j < n; j++) {
+			long x = 0;
+			int desp = 0;
+			byte c;
+			do {
+				c = b.get(pi++);
+				x |= (long) (c & 0x7F) << desp;
+				desp += 7;
+			} while (c < 0);
+			delta += AlmacenConteos.deszigzag(x);
+			instante += delta;
+			x = 0;
+			desp = 0;
+			do {
+				c = b.get(pv++);
+				x |= (long) (c & 0x7F) << desp;
+				desp += 7;
+			} while (c < 0);
+			valor += (int) AlmacenConteos.deszigzag(x);
+			if (instante >= hasta)
+				return;
+			if (instante >= desde)
+				v.muestra(instante, valor);
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package principal;
+
+/*
+ * Semaforo de un paso de peatones: 1 paso, 2 despeje (intermitente), 4 rojo
+ */
+public class SemP extends Semaforo {
+
+	public SemP(int modo) {
+		super(modo);
+	}
+}
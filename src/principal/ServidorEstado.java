@@ -0,0 +1,266 @@
+package principal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * API local de estado de los cruces sobre el HttpServer del JDK:
+ *   GET /estado             estado actual de todos los cruces en JSON
+ *   GET /estado?desde=v     espera (long-poll, hasta ESPERA_MAX ms) a que haya una version mayor que v
+ *   GET /eventos            server-sent events con el estado cada vez que cambia
+ *
+ * Los clientes nunca tocan los hilos de control: un solo hilo lee cada periodo los EstadoCruce que
+ * publican los ticks, arma el documento una vez por version y todos los clientes envian esos mismos
+ * bytes. Las peticiones se atienden en un pool fijo de hilos (en Java 17 no hay hilos virtuales).
+ * Los clientes que se quedan esperando (/estado?desde y /eventos) ocupan un hilo cada uno, asi que
+ * pasan a un segundo pool de esperas hilos para que no dejen sin hilos al /estado simple; si ese
+ * pool esta lleno se contesta 503.
+ */
+public class ServidorEstado {
+	private static final long ESPERA_MAX = 30000; //ms
+
+	private final List<GestionCruce> cruces = new CopyOnWriteArrayList<GestionCruce>();
+	private final ScheduledExecutorService lector = Executors.newSingleThreadScheduledExecutor();
+	private final ExecutorService hilos;
+	private final ThreadPoolExecutor esperas; //Long-poll y /eventos
+	private final EstadoCruce.Vista vista = new EstadoCruce.Vista(); //Solo la usa el lector
+	private HttpServer servidor;
+	private long[] vistas = new long[0]; //Ultima version leida de cada cruce
+	private long version;
+	private byte[] documento = "[]".getBytes(StandardCharsets.UTF_8);
+
+	public ServidorEstado(int hilos) {
+		this(hilos, 4 * hilos);
+	}
+
+	public ServidorEstado(int hilos, int esperas) {
+		this.hilos = Executors.newFixedThreadPool(hilos);
+		//Sin cola: si todos los hilos estan esperando se rechaza en vez de dejar al cliente colgado
+		this.esperas = new ThreadPoolExecutor(esperas, esperas, 0, TimeUnit.MILLISECONDS,
+				new SynchronousQueue<Runnable>());
+	}
+
+	public void registrar(GestionCruce gc) {
+		cruces.add(gc);
+	}
+
+	/*
+	 * Sirve en el puerto dado y revisa los estados publicados cada periodo (ms)
+	 */
+	public synchronized void iniciar(int puerto, long periodo) throws IOException {
+		servidor = HttpServer.create(new InetSocketAddress(puerto), 0);
+		servidor.setExecutor(hilos);
+		servidor.createContext("/estado", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange ex) throws IOException {
+				estado(ex);
+			}
+		});
+		servidor.createContext("/eventos", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange ex) throws IOException {
+				esperar(ex, -1, true);
+			}
+		});
+		servidor.start();
+		lector.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				revisar();
+			}
+		}, 0, periodo, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void parar() {
+		lector.shutdownNow();
+		if (servidor != null)
+			servidor.stop(0);
+		hilos.shutdownNow();
+		esperas.shutdownNow();
+		notifyAll();
+	}
+
+	/*
+	 * Si algun cruce publico una version nueva arma el documento y despierta a los clientes que esperan
+	 */
+	private void revisar() {
+		List<GestionCruce> lista = cruces;
+		if (vistas.length != lista.size())
+			vistas = new long[lista.size()];
+		boolean cambio = false;
+		for (int i = 0; i < vistas.length; i++) {
+			long v = lista.get(i).getEstado().getVersion();
+			cambio |= v != vistas[i];
+			vistas[i] = v;
+		}
+		if (!cambio)
+			return;
+		byte[] nuevo = json(lista).getBytes(StandardCharsets.UTF_8);
+		synchronized (this) {
+			documento = nuevo;
+			version++;
+			notifyAll();
+		}
+	}
+
+	private String json(List<GestionCruce> lista) {
+		long ahora = System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder(256 * lista.size() + 2);
+		sb.append('[');
+		for (GestionCruce gc : lista) {
+			if (!gc.getEstado().leer(vista))
+				continue;
+			if (sb.length() > 1)
+				sb.append(',');
+			sb.append("{\"id\":").append(gc.getId());
+			sb.append(",\"version\":").append(vista.version);
+			sb.append(",\"edadFase\":").append(Math.max(0, (ahora - vista.inicioFase) / 1000));
+			sb.append(",\"ultimaDecision\":").append(vista.ultimaDecision);
+			sb.append(",\"planFijo\":").append(vista.planFijo);
+			sb.append(",\"degradado\":").append(vista.degradado);
+			sb.append(",\"calles\":[");
+			for (int k = 0; k < 4; k++) {
+				if (k > 0)
+					sb.append(',');
+				sb.append("{\"sc\":").append(vista.modos[2 * k]).append(",\"sg\":").append(vista.modos[2 * k + 1])
+						.append(",\"sp\":").append(vista.peatones[k])
+						.append(",\"vias\":[");
+				for (int v = 0; v < vista.numVias[k]; v++) {
+					if (v > 0)
+						sb.append(',');
+					sb.append(vista.via(k, v));
+				}
+				sb.append("]}");
+			}
+			sb.append("]}");
+		}
+		return sb.append(']').toString();
+	}
+
+	private void estado(HttpExchange ex) throws IOException {
+		long desde = -1;
+		String q = ex.getRequestURI().getQuery();
+		if (q != null && q.startsWith("desde=")) {
+			try {
+				desde = Long.parseLong(q.substring(6));
+			} catch (NumberFormatException e) {
+				responder(ex, 400, "desde no es un numero".getBytes(StandardCharsets.UTF_8), -1);
+				return;
+			}
+		}
+		if (desde < 0) {
+			byte[] cuerpo;
+			long v;
+			synchronized (this) {
+				cuerpo = documento;
+				v = version;
+			}
+			responder(ex, 200, cuerpo, v);
+		} else {
+			esperar(ex, desde, false);
+		}
+	}
+
+	/*
+	 * Pasa al pool de esperas un long-poll (sse false) o un cliente de /eventos
+	 */
+	private void esperar(final HttpExchange ex, final long desde, final boolean sse) throws IOException {
+		try {
+			esperas.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (sse)
+							eventos(ex);
+						else
+							estadoDesde(ex, desde);
+					} catch (IOException e) {
+						//El cliente se ha ido
+					} finally {
+						ex.close();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			responder(ex, 503, "Demasiados clientes esperando".getBytes(StandardCharsets.UTF_8), -1);
+		}
+	}
+
+	private void estadoDesde(HttpExchange ex, long desde) throws IOException {
+		byte[] cuerpo;
+		long v;
+		synchronized (this) {
+			long limite = System.currentTimeMillis() + ESPERA_MAX;
+			try {
+				while (version <= desde && System.currentTimeMillis() < limite && !lector.isShutdown())
+					wait(Math.max(1, limite - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			cuerpo = documento;
+			v = version;
+		}
+		responder(ex, 200, cuerpo, v);
+	}
+
+	private static void responder(HttpExchange ex, int codigo, byte[] cuerpo, long version) throws IOException {
+		ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		if (version >= 0)
+			ex.getResponseHeaders().set("X-Version", Long.toString(version));
+		ex.sendResponseHeaders(codigo, cuerpo.length);
+		try (OutputStream os = ex.getResponseBody()) {
+			os.write(cuerpo);
+		}
+	}
+
+	/*
+	 * Envia el estado como evento SSE cada vez que cambia, hasta que el cliente cierra la conexion
+	 */
+	private void eventos(HttpExchange ex) throws IOException {
+		ex.getResponseHeaders().set("Content-Type", "text/event-stream");
+		ex.getResponseHeaders().set("Cache-Control", "no-cache");
+		ex.sendResponseHeaders(200, 0);
+		byte[] fin = "\n\n".getBytes(StandardCharsets.UTF_8);
+		long enviada = -1;
+		try (OutputStream os = ex.getResponseBody()) {
+			while (true) {
+				byte[] cuerpo;
+				long v;
+				synchronized (this) {
+					if (version == enviada && !lector.isShutdown())
+						wait(ESPERA_MAX);
+					if (lector.isShutdown())
+						return;
+					cuerpo = documento;
+					v = version;
+				}
+				if (v == enviada) {
+					os.write(":\n\n".getBytes(StandardCharsets.UTF_8)); //Comentario para mantener viva la conexion
+				} else {
+					os.write(("id: " + v + "\ndata: ").getBytes(StandardCharsets.UTF_8));
+					os.write(cuerpo);
+					os.write(fin);
+					enviada = v;
+				}
+				os.flush();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
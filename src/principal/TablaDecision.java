@@ -0,0 +1,77 @@
+package principal;
+
+/*
+ * Reglas de decision compiladas a tablas. Las reglas se escriben una sola vez (reglaCambio y
+ * reglaGiro) y compilar() las evalua sobre un valor representativo de cada celda:
+ *  - cambio: [tiempo en verde > maxRojo][calle A con mas de umbralCola coches por via][calle B igual]
+ *  - giro: [coches en la via 0 de A][coches en la via 0 de B], recortados a tope
+ * Con esos niveles la tabla es exacta: si ninguna calle pasa de umbralCola por via la suma de las
+ * dos tampoco, y por encima de tope el giro ya esta encendido por la condicion individual.
+ */
+public final class TablaDecision {
+	public static final int MAX_GIRO = 255; //Umbral de giro maximo; la tabla de giro ocupa (umbral + 2)^2 bytes
+	private final int umbralCola;
+	private final int umbralGiro;
+	private final int umbralGiroTotal;
+	private final int maxRojo;
+	private final int tope; //Nivel maximo de la via 0
+	private final byte[] cambio = new byte[8];
+	private final byte[] giro;
+
+	private TablaDecision(int umbralCola, int umbralGiro, int umbralGiroTotal, int maxRojo) {
+		this.umbralCola = umbralCola;
+		this.umbralGiro = umbralGiro;
+		this.umbralGiroTotal = umbralGiroTotal;
+		this.maxRojo = maxRojo;
+		this.tope = Math.max(umbralGiro, umbralGiroTotal) + 1;
+		this.giro = new byte[(tope + 1) * (tope + 1)];
+	}
+
+	public static TablaDecision compilar(int umbralCola, int umbralGiro, int umbralGiroTotal, int maxRojo) {
+		if (umbralCola < 0 || umbralGiro < 0 || umbralGiroTotal < 0 || maxRojo < 0)
+			throw new IllegalArgumentException("Los umbrales no pueden ser negativos");
+		if (umbralGiro > MAX_GIRO || umbralGiroTotal > MAX_GIRO)
+			throw new IllegalArgumentException("Umbral de giro por encima de " + MAX_GIRO);
+		TablaDecision t = new TablaDecision(umbralCola, umbralGiro, umbralGiroTotal, maxRojo);
+		for (int i = 0; i < t.cambio.length; i++) {
+			int tiempo = (i & 4) != 0 ? maxRojo + 1 : maxRojo;
+			int cochesA = (i & 2) != 0 ? umbralCola + 1 : umbralCola;
+			int cochesB = (i & 1) != 0 ? umbralCola + 1 : umbralCola;
+			t.cambio[i] = (byte) reglaCambio(tiempo, cochesA, 1, cochesB, 1, umbralCola, maxRojo);
+		}
+		for (int a = 0; a <= t.tope; a++)
+			for (int b = 0; b <= t.tope; b++)
+				t.giro[a * (t.tope + 1) + b] = (byte) reglaGiro(a, b, umbralGiro, umbralGiroTotal);
+		return t;
+	}
+
+	/*
+	 * Decision para la calle en rojo (A y B) con dos lecturas de tabla
+	 */
+	public int decidir(int tiempo, int cochesA, int viasA, int cochesB, int viasB, int giroA, int giroB) {
+		int i = (tiempo > maxRojo ? 4 : 0) | (cochesA > umbralCola * viasA ? 2 : 0) | (cochesB > umbralCola * viasB ? 1 : 0);
+		return cambio[i] | giro[Math.min(giroA, tope) * (tope + 1) + Math.min(giroB, tope)];
+	}
+
+	/*
+	 * Reglas originales de algoritmo() para pedir el cambio de luz
+	 */
+	static int reglaCambio(int tiempo, int cochesA, int viasA, int cochesB, int viasB, int umbralCola, int maxRojo) {
+		if (tiempo > maxRojo)
+			return GestionCruce.CAMBIO;
+		if ((cochesA + cochesB) > umbralCola * (viasA + viasB) || cochesA > umbralCola * viasA || cochesB > umbralCola * viasB)
+			return GestionCruce.CAMBIO;
+		return GestionCruce.MANTENER;
+	}
+
+	/*
+	 * Reglas originales de algoritmo() para la luz de giro
+	 */
+	static int reglaGiro(int giroA, int giroB, int umbralGiro, int umbralGiroTotal) {
+		if (giroA > umbralGiro || giroB > umbralGiro || (giroA + giroB) > umbralGiroTotal)
+			return GestionCruce.GIRO_ON;
+		else if (giroA < umbralGiro || giroB < umbralGiro || (giroA + giroB) < umbralGiroTotal)
+			return GestionCruce.GIRO_OFF;
+		return GestionCruce.MANTENER;
+	}
+}
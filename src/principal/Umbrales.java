@@ -0,0 +1,130 @@
+package principal;
+
+import java.util.Properties;
+
+/*
+ * Umbrales de control inmutables y con version. Cada cambio crea una copia nueva con la version
+ * siguiente y su propia TablaDecision ya compilada, de modo que el tick solo tiene que leer la
+ * referencia actual para usar umbrales y tabla coherentes entre si.
+ */
+public final class Umbrales {
+	public static final Umbrales POR_DEFECTO = new Umbrales(0, 4, 4, 8, 60, 120, 0, 0);
+
+	private final long version;
+	private final int umbralCola; //Coches por via a partir de los que se pide el cambio
+	private final int umbralGiro; //Coches en la via de giro de una calle para encender el giro
+	private final int umbralGiroTotal; //Coches en las dos vias de giro para encender el giro
+	private final int minRojo; //Tiempo minimo antes de evaluar las reglas
+	private final int maxRojo; //Tiempo maximo antes de forzar el cambio
+	private final int maxA; //Tiempo en amarillo
+	private final int maxR; //Tiempo en rojo hasta que el contrario se pone en verde
+	private final TablaDecision tabla;
+
+	public Umbrales(long version, int umbralCola, int umbralGiro, int umbralGiroTotal, int minRojo, int maxRojo, int maxA, int maxR) {
+		if (minRojo < 0 || maxA < 0 || maxR < 0)
+			throw new IllegalArgumentException("Los tiempos no pueden ser negativos");
+		this.version = version;
+		this.umbralCola = umbralCola;
+		this.umbralGiro = umbralGiro;
+		this.umbralGiroTotal = umbralGiroTotal;
+		this.minRojo = minRojo;
+		this.maxRojo = maxRojo;
+		this.maxA = maxA;
+		this.maxR = maxR;
+		this.tabla = TablaDecision.compilar(umbralCola, umbralGiro, umbralGiroTotal, maxRojo);
+	}
+
+	/*
+	 * Crea la version siguiente con los valores del fichero, que tiene que traer todos los umbrales:
+	 * uno a medias (por ejemplo leido mientras se escribia) se rechaza entero.
+	 * Si el fichero trae "version" se usa esa, si no la actual mas uno.
+	 */
+	public Umbrales con(Properties p) {
+		return new Umbrales(
+				Long.parseLong(p.getProperty("version", String.valueOf(version + 1)).trim()),
+				leer(p, "umbralCola"),
+				leer(p, "umbralGiro"),
+				leer(p, "umbralGiroTotal"),
+				leer(p, "minRojo"),
+				leer(p, "maxRojo"),
+				leer(p, "maxA"),
+				leer(p, "maxR"));
+	}
+
+	private static int leer(Properties p, String clave) {
+		String v = p.getProperty(clave);
+		if (v == null)
+			throw new IllegalArgumentException("Falta " + clave);
+		return Integer.parseInt(v.trim());
+	}
+
+	public Umbrales conUmbralCola(int x) {
+		return new Umbrales(version + 1, x, umbralGiro, umbralGiroTotal, minRojo, maxRojo, maxA, maxR);
+	}
+
+	public Umbrales conUmbralGiro(int x) {
+		return new Umbrales(version + 1, umbralCola, x, umbralGiroTotal, minRojo, maxRojo, maxA, maxR);
+	}
+
+	public Umbrales conUmbralGiroTotal(int x) {
+		return new Umbrales(version + 1, umbralCola, umbralGiro, x, minRojo, maxRojo, maxA, maxR);
+	}
+
+	public Umbrales conMinRojo(int x) {
+		return new Umbrales(version + 1, umbralCola, umbralGiro, umbralGiroTotal, x, maxRojo, maxA, maxR);
+	}
+
+	public Umbrales conMaxRojo(int x) {
+		return new Umbrales(version + 1, umbralCola, umbralGiro, umbralGiroTotal, minRojo, x, maxA, maxR);
+	}
+
+	public Umbrales conMaxA(int x) {
+		return new Umbrales(version + 1, umbralCola, umbralGiro, umbralGiroTotal, minRojo, maxRojo, x, maxR);
+	}
+
+	public Umbrales conMaxR(int x) {
+		return new Umbrales(version + 1, umbralCola, umbralGiro, umbralGiroTotal, minRojo, maxRojo, maxA, x);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public int getUmbralCola() {
+		return umbralCola;
+	}
+
+	public int getUmbralGiro() {
+		return umbralGiro;
+	}
+
+	public int getUmbralGiroTotal() {
+		return umbralGiroTotal;
+	}
+
+	public int getMinRojo() {
+		return minRojo;
+	}
+
+	public int getMaxRojo() {
+		return maxRojo;
+	}
+
+	public int getMaxA() {
+		return maxA;
+	}
+
+	public int getMaxR() {
+		return maxR;
+	}
+
+	public TablaDecision getTabla() {
+		return tabla;
+	}
+
+	@Override
+	public String toString() {
+		return "Umbrales v" + version + " {cola=" + umbralCola + ", giro=" + umbralGiro + ", giroTotal=" + umbralGiroTotal
+				+ ", minRojo=" + minRojo + ", maxRojo=" + maxRojo + ", maxA=" + maxA + ", maxR=" + maxR + "}";
+	}
+}
@@ -0,0 +1,219 @@
+package principal;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Vigila que cada tick acabe dentro de su presupuesto. java.util.Timer retrasa los ticks siguientes
+ * cuando uno se alarga (un POST lento), asi que por cada cruce se guarda ademas la deriva: cuanto
+ * empieza cada tick de algoritmo() despues de lo que le tocaba. Los ticks de FuentePush o de
+ * ClienteSensoresNio no tienen hora fija y no cuentan para la deriva. El ambar y el despeje de un
+ * cambio de fase se descuentan de la duracion: son una espera a proposito, no un tick lento.
+ *
+ * Un objeto sirve a muchos cruces, cada uno en su hueco de arrays planos. Un cruce puede hacer ticks
+ * desde varios hilos a la vez (el Timer y un flujo push, por ejemplo) y el hilo del vigilante avisa
+ * de los que siguen corriendo pasado el presupuesto, asi que los arrays se tocan con el cerrojo del
+ * vigilante; los avisos y degradar() se llaman ya fuera de el.
+ *
+ * Tras limite sobrepasos seguidos el cruce pasa a modo degradado (solo reglas, sin politica) y
+ * vuelve al normal tras limite ticks seguidos dentro del presupuesto.
+ */
+public class VigilanteTick {
+	public interface Aviso {
+		void aviso(GestionCruce gc, long duracion, long deriva); //ns
+	}
+
+	private final long periodo; //ns
+	private final long presupuesto; //ns
+	private final int limite;
+	private final GestionCruce[] cruces;
+	private final long[] enCurso; //Inicio del tick en marcha mas antiguo, 0 si no hay ninguno
+	private final long[] esperadoEnCurso; //GestionCruce.esperado() al empezar ese tick
+	private final int[] enMarcha; //Ticks en marcha a la vez
+	private final long[] primero; //Inicio del primer tick del Timer
+	private final long[] programados; //Ticks del Timer
+	private final long[] ticks;
+	private final long[] sobrepasos;
+	private final long[] maxDuracion;
+	private final long[] deriva;
+	private final long[] maxDeriva;
+	private final int[] seguidos; //>0 sobrepasos seguidos, <0 ticks buenos seguidos
+	private final boolean[] avisado; //Ya se aviso del tick en curso desde el vigilante
+	private final ScheduledExecutorService vigilante = Executors.newSingleThreadScheduledExecutor();
+	private volatile Aviso aviso = new Aviso() {
+		@Override
+		public void aviso(GestionCruce gc, long duracion, long deriva) {
+			System.out.println("Cruce " + gc.getId() + ": tick de " + duracion / 1000000 + " ms, deriva "
+					+ deriva / 1000000 + " ms");
+		}
+	};
+	private volatile int ocupados;
+
+	/*
+	 * periodo y presupuesto en ms
+	 */
+	public VigilanteTick(int capacidad, long periodo, long presupuesto, int limite) {
+		if (capacidad <= 0 || periodo <= 0 || presupuesto <= 0 || limite <= 0)
+			throw new IllegalArgumentException("Parametros del vigilante no validos");
+		this.periodo = TimeUnit.MILLISECONDS.toNanos(periodo);
+		this.presupuesto = TimeUnit.MILLISECONDS.toNanos(presupuesto);
+		this.limite = limite;
+		cruces = new GestionCruce[capacidad];
+		enCurso = new long[capacidad];
+		esperadoEnCurso = new long[capacidad];
+		enMarcha = new int[capacidad];
+		primero = new long[capacidad];
+		programados = new long[capacidad];
+		ticks = new long[capacidad];
+		sobrepasos = new long[capacidad];
+		maxDuracion = new long[capacidad];
+		deriva = new long[capacidad];
+		maxDeriva = new long[capacidad];
+		seguidos = new int[capacidad];
+		avisado = new boolean[capacidad];
+	}
+
+	public void setAviso(Aviso aviso) {
+		this.aviso = aviso;
+	}
+
+	/*
+	 * Reserva un hueco para el cruce; lo llama GestionCruce.setVigilante
+	 */
+	synchronized int reservar(GestionCruce gc) {
+		if (ocupados == cruces.length)
+			throw new IllegalStateException("Sin huecos libres, capacidad " + cruces.length);
+		cruces[ocupados] = gc;
+		return ocupados++;
+	}
+
+	/*
+	 * Revisa cada periodo (ms) los ticks en marcha, para enterarse de uno colgado antes de que acabe
+	 */
+	public void iniciar(long cada) {
+		vigilante.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				revisar(System.nanoTime());
+			}
+		}, cada, cada, TimeUnit.MILLISECONDS);
+	}
+
+	public void parar() {
+		vigilante.shutdown();
+	}
+
+	/*
+	 * esperado es GestionCruce.esperado() al empezar; delTimer indica un tick de algoritmo()
+	 */
+	synchronized void inicio(int hueco, long ahora, long esperado, boolean delTimer) {
+		if (delTimer) {
+			if (programados[hueco] == 0)
+				primero[hueco] = ahora;
+			long d = ahora - (primero[hueco] + programados[hueco]++ * periodo);
+			deriva[hueco] = d;
+			if (d > maxDeriva[hueco])
+				maxDeriva[hueco] = d;
+		}
+		if (enMarcha[hueco]++ == 0) {
+			enCurso[hueco] = ahora;
+			esperadoEnCurso[hueco] = esperado;
+			avisado[hueco] = false;
+		}
+	}
+
+	/*
+	 * inicio es el que se paso a inicio(); esperado, los ns del tick en ambar y despeje
+	 */
+	void fin(int hueco, long inicio, long ahora, long esperado) {
+		long duracion = ahora - inicio - esperado;
+		boolean avisar = false;
+		int degradar = 0;
+		long d;
+		synchronized (this) {
+			if (--enMarcha[hueco] == 0) {
+				enCurso[hueco] = 0;
+			} else if (enCurso[hueco] == inicio) {
+				//Sigue otro tick que empezo despues; al menos lleva desde ahora
+				enCurso[hueco] = ahora;
+				esperadoEnCurso[hueco] = cruces[hueco].esperado(ahora);
+			}
+			ticks[hueco]++;
+			if (duracion > maxDuracion[hueco])
+				maxDuracion[hueco] = duracion;
+			if (duracion > presupuesto) {
+				sobrepasos[hueco]++;
+				seguidos[hueco] = Math.max(seguidos[hueco], 0) + 1;
+				avisar = !avisado[hueco];
+				if (seguidos[hueco] == limite)
+					degradar = 1;
+			} else {
+				seguidos[hueco] = Math.min(seguidos[hueco], 0) - 1;
+				if (seguidos[hueco] == -limite)
+					degradar = -1;
+			}
+			d = deriva[hueco];
+		}
+		if (avisar)
+			aviso.aviso(cruces[hueco], duracion, d);
+		if (degradar != 0)
+			cruces[hueco].degradar(degradar > 0);
+	}
+
+	private void revisar(long ahora) {
+		for (int h = 0; h < ocupados; h++) {
+			long duracion;
+			long d;
+			synchronized (this) {
+				long inicio = enCurso[h];
+				if (inicio == 0 || avisado[h])
+					continue;
+				duracion = ahora - inicio - (cruces[h].esperado(ahora) - esperadoEnCurso[h]);
+				if (duracion <= presupuesto)
+					continue;
+				avisado[h] = true;
+				d = deriva[h];
+			}
+			aviso.aviso(cruces[h], duracion, d);
+		}
+	}
+
+	public synchronized long getTicks(int hueco) {
+		return ticks[hueco];
+	}
+
+	public synchronized long getSobrepasos(int hueco) {
+		return sobrepasos[hueco];
+	}
+
+	/*
+	 * ns del tick mas largo, sin contar ambar y despeje
+	 */
+	public synchronized long getMaxDuracion(int hueco) {
+		return maxDuracion[hueco];
+	}
+
+	/*
+	 * Retraso (ns) del ultimo tick del Timer respecto a su hora teorica
+	 */
+	public synchronized long getDeriva(int hueco) {
+		return deriva[hueco];
+	}
+
+	public synchronized long getMaxDeriva(int hueco) {
+		return maxDeriva[hueco];
+	}
+
+	public synchronized String informe() {
+		StringBuilder sb = new StringBuilder();
+		for (int h = 0; h < ocupados; h++) {
+			sb.append("Cruce ").append(cruces[h].getId()).append(": ").append(ticks[h]).append(" ticks, ")
+					.append(sobrepasos[h]).append(" sobrepasos, max ").append(maxDuracion[h] / 1000000)
+					.append(" ms, deriva ").append(deriva[h] / 1000000).append(" ms (max ")
+					.append(maxDeriva[h] / 1000000).append(" ms)").append(cruces[h].isDegradado() ? ", degradado" : "")
+					.append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,119 @@
+package testing;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import principal.*;
+
+/*
+ * Comprueba que el tick en regimen estable no reserva memoria: detector, estimador, pronostico,
+ * reglas, cambios de fase y actuacion, con la lectura de una fuente de datos que reutiliza las listas
+ * de las calles y con la de ConexionExterna (analisis del JSON y calles simuladas). De ConexionExterna
+ * se sustituye leerDatos() por una linea fija, porque la peticion HTTP si reserva (HttpURLConnection,
+ * readLine). Mueve cada cruce solo con tick() y un reloj virtual, calienta el JIT y mide con
+ * ThreadMXBean.getThreadAllocatedBytes los bytes reservados por el hilo durante muchos ticks.
+ * Sale con codigo 1 si algo reserva.
+ *
+ *   java testing.AsignacionTick [ticks]
+ */
+public class AsignacionTick {
+	private static final String[] LINEAS = { "[3, 5, 0]", "[11,2,7]", "[0, 0, 4]", "[6, 9, 1]" };
+	private static long cambios;
+
+	public static void main(String[] args) {
+		int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		final Random azar = new Random(1);
+		FuenteDatos fuente = new FuenteDatos() {
+			@Override
+			public void leer(Calle c11, Calle c12, Calle c21, Calle c22) {
+				rellenar(c11);
+				rellenar(c12);
+				rellenar(c21);
+				rellenar(c22);
+			}
+
+			//Conteos pequenos: Integer.valueOf los saca de su cache sin reservar
+			private void rellenar(Calle c) {
+				c.reset();
+				for (int v = 0; v < 3; v++)
+					c.add(azar.nextInt(12));
+			}
+		};
+		ConexionExterna sinRed = new ConexionExterna() {
+			@Override
+			public boolean postDatos(int modo, int posicion, long secuencia) {
+				return true;
+			}
+		};
+		ConexionExterna lineaFija = new ConexionExterna() {
+			private int n;
+
+			@Override
+			public String leerDatos() {
+				return LINEAS[n++ % LINEAS.length];
+			}
+
+			@Override
+			public boolean postDatos(int modo, int posicion, long secuencia) {
+				return true;
+			}
+		};
+		boolean fuenteBien = medir("FuenteDatos", sinRed, fuente, ticks);
+		boolean conexionBien = medir("ConexionExterna", lineaFija, null, ticks);
+		if (!fuenteBien || !conexionBien)
+			System.exit(1);
+	}
+
+	/*
+	 * Mide un cruce nuevo con esa conexion y fuente; devuelve false si no cambia de fase o reserva
+	 */
+	private static boolean medir(String nombre, ConexionExterna conexion, FuenteDatos fuente, int ticks) {
+		com.sun.management.ThreadMXBean hilos = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long hilo = Thread.currentThread().getId();
+		RelojVirtual reloj = new RelojVirtual(0);
+		GestionCruce gc = new GestionCruce(1, null, conexion, fuente, reloj);
+		gc.setMinRojo(0);
+		gc.setEstimador(new EstimadorCola(10, 0.3, 0.1));
+		gc.setDetector(new DetectorAnomalias());
+		gc.setPronostico(new PronosticoColas(1, 60));
+		gc.setMetricas(new Metricas());
+		gc.setVigilante(new VigilanteTick(1, 1000, 1000, 3));
+		gc.elegirFase();
+
+		//Calentamiento para que el JIT compile el tick
+		long t = 0;
+		for (int i = 0; i < 50000; i++)
+			t = pasar(gc, reloj, t);
+
+		long vacio = hilos.getThreadAllocatedBytes(hilo);
+		vacio = hilos.getThreadAllocatedBytes(hilo) - vacio; //Lo que reserva la propia medida
+		cambios = 0;
+		long antes = hilos.getThreadAllocatedBytes(hilo);
+		for (int i = 0; i < ticks; i++)
+			t = pasar(gc, reloj, t);
+		long bytes = hilos.getThreadAllocatedBytes(hilo) - antes - vacio;
+
+		System.out.println(nombre + ": " + ticks + " ticks, " + cambios + " cambios de fase: " + bytes
+				+ " bytes, " + (double) bytes / ticks + " bytes/tick");
+		//Sin cambios de fase no se ha recorrido la decision
+		return cambios > 0 && bytes == 0;
+	}
+
+	private static long pasar(GestionCruce gc, RelojVirtual reloj, long t) {
+		long antes = t;
+		t = Math.max(t + 1000, reloj.ahora()); //cambioLuz() adelanta el reloj lo que duran ambar y rojo
+		reloj.fijar(t);
+		for (long s = antes / 1000; s < t / 1000; s++)
+			gc.contarTiempo();
+		//tick() solo evalua las reglas con la calle 1 en verde; la devuelve a verde una onda verde cada
+		//minuto, como haria CoordinadorCorredor
+		if (t % 60000 == 0)
+			gc.sugerirInicioVerde(t + 5000, 0);
+		long inicio = gc.getInicioFase();
+		gc.tick();
+		if (gc.getInicioFase() != inicio)
+			cambios++;
+		return t;
+	}
+}
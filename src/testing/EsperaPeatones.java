@@ -0,0 +1,71 @@
+package testing;
+
+import java.util.Random;
+
+import principal.*;
+
+/*
+ * Comprueba que las llamadas de peatones se atienden dentro de LlamadasPeaton.cotaEspera. Mueve un
+ * cruce con un reloj virtual (un tick por segundo) y entre tick y tick pulsa al azar en las cuatro
+ * calles; las reglas casi nunca cambian de fase (minRojo alto), asi que muchas llamadas tienen que
+ * forzar el cambio. Sale con codigo 1 si alguna espera pasa de la cota.
+ *
+ *   java testing.EsperaPeatones [ticks]
+ */
+public class EsperaPeatones {
+
+	public static void main(String[] args) {
+		int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		ConexionExterna sinRed = new ConexionExterna() {
+			@Override
+			public boolean postDatos(int modo, int posicion, long secuencia) {
+				return true;
+			}
+		};
+		final Random azar = new Random(1);
+		FuenteDatos fuente = new FuenteDatos() {
+			@Override
+			public void leer(Calle c11, Calle c12, Calle c21, Calle c22) {
+				rellenar(c11);
+				rellenar(c12);
+				rellenar(c21);
+				rellenar(c22);
+			}
+
+			private void rellenar(Calle c) {
+				c.reset();
+				c.add(azar.nextInt(12));
+			}
+		};
+		RelojVirtual reloj = new RelojVirtual(0);
+		final GestionCruce gc = new GestionCruce(1, null, sinRed, fuente, reloj);
+		Umbrales u = new Umbrales(1, 5, 5, 5, 120, 240, 3, 1);
+		gc.setUmbrales(u);
+		LlamadasPeaton peatones = new LlamadasPeaton(6, 3, 20);
+		gc.setPeatones(peatones);
+		gc.elegirFase();
+
+		Random pulsador = new Random(2);
+		int pulsaciones = 0;
+		long t = 0;
+		for (int i = 0; i < ticks; i++) {
+			t = Math.max(t + 1000, reloj.ahora()); //cambioLuz() adelanta el reloj lo que duran ambar y rojo
+			reloj.fijar(t);
+			gc.contarTiempo();
+			gc.tick();
+			//Unas cuantas pulsaciones por minuto repartidas entre las calles
+			if (pulsador.nextInt(10) == 0) {
+				gc.pulsarPeaton(1 + pulsador.nextInt(4));
+				pulsaciones++;
+			}
+		}
+
+		int cota = peatones.cotaEspera(u);
+		System.out.println(pulsaciones + " pulsaciones, " + peatones.getAtendidas() + " pasos abiertos ("
+				+ peatones.getForzadas() + " cambios forzados): espera media " + peatones.getEsperaMedia() / 1000.0
+				+ " s, max " + peatones.getEsperaMax() / 1000.0 + " s, cota " + cota + " s");
+		if (peatones.getEsperaMax() > cota * 1000L)
+			System.exit(1);
+	}
+}
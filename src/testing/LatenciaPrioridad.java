@@ -0,0 +1,83 @@
+package testing;
+
+import principal.*;
+
+/*
+ * Mide lo que tarda una peticion de prioridad en empezar su transicion mientras el cruce esta
+ * ocupado leyendo sensores lentos (400 ms por lectura, como un getDatos que apura sus plazos). Pide
+ * prioridad alternando los dos ejes, espera a que acabe cada cambio y sale con codigo 1 si alguna
+ * peticion tarda mas de limite ms.
+ *
+ *   java testing.LatenciaPrioridad [peticiones] [limite]
+ */
+public class LatenciaPrioridad {
+
+	public static void main(String[] args) throws InterruptedException {
+		int peticiones = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		long limite = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+		ConexionExterna sinRed = new ConexionExterna() {
+			@Override
+			public boolean postDatos(int modo, int posicion, long secuencia) {
+				return true;
+			}
+		};
+		FuenteDatos lenta = new FuenteDatos() {
+			@Override
+			public void leer(Calle c11, Calle c12, Calle c21, Calle c22) {
+				dormir(400);
+				rellenar(c11);
+				rellenar(c12);
+				rellenar(c21);
+				rellenar(c22);
+			}
+
+			private void rellenar(Calle c) {
+				c.reset();
+				c.add(3);
+			}
+		};
+		final GestionCruce gc = new GestionCruce(1, null, sinRed, lenta, new RelojSistema());
+		//Ambar de 1 s y sin rojo de despeje para que la prueba sea corta; minRojo alto para que el tick no cambie solo
+		gc.setUmbrales(new Umbrales(1, 5, 5, 5, 1000, 2000, 1, 0));
+		gc.elegirFase();
+		Thread ticks = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true)
+					gc.tick();
+			}
+		}, "ticks");
+		ticks.setDaemon(true);
+		ticks.start();
+
+		EstadoCruce.Vista vista = new EstadoCruce.Vista();
+		long max = 0;
+		long suma = 0;
+		for (int i = 0; i < peticiones; i++) {
+			dormir(300);
+			gc.getEstado().leer(vista);
+			int calle = vista.modos[0] == 1 ? 3 : 1; //Siempre al eje en rojo
+			long antes = gc.getLatenciaPrioridad();
+			gc.prioridad(calle, 1500);
+			while (gc.getLatenciaPrioridad() == antes)
+				Thread.onSpinWait();
+			long ns = gc.getLatenciaPrioridad();
+			max = Math.max(max, ns);
+			suma += ns;
+			System.out.println("Prioridad para la calle " + calle + ": " + ns / 1000 + " us");
+			dormir(1200); //Ambar del cambio
+		}
+		System.out.println(peticiones + " peticiones: media " + suma / peticiones / 1000 + " us, max " + max / 1000 + " us");
+		if (max > limite * 1000000L)
+			System.exit(1);
+	}
+
+	private static void dormir(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
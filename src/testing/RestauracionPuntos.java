@@ -0,0 +1,180 @@
+package testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import principal.*;
+
+/*
+ * Mide lo que tarda en volver al estado guardado un controlador con muchos cruces, como al arrancar
+ * tras un reinicio. Guarda los cruces en un PuntoControl, lo reabre y restaura cada cruce en uno
+ * nuevo. Sale con codigo 1 si tarda mas de limite ms o si algun cruce no vuelve a su fase.
+ *
+ * Luego lo mismo con ambar y despeje de 3 y 2 s y cruces guardados a mitad de un cambio (en el ambar
+ * o en el despeje) o antes de elegir fase: la restauracion no puede esperar a que acaben, tiene que
+ * dejarlos en rojo, y sus ticks tienen que dar el verde al eje que toca cuando acaba el despeje.
+ *
+ *   java testing.RestauracionPuntos [cruces] [limite]
+ */
+public class RestauracionPuntos {
+
+	public static void main(String[] args) throws IOException {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		long limite = args.length > 1 ? Long.parseLong(args[1]) : 100;
+
+		ConexionExterna sinRed = new ConexionExterna() {
+			@Override
+			public boolean postDatos(int modo, int posicion, long secuencia) {
+				return true;
+			}
+		};
+		File f = File.createTempFile("puntos", ".bin");
+		f.delete();
+		PuntoControl pc = new PuntoControl(f.getPath());
+		for (int i = 0; i < n; i++) {
+			GestionCruce gc = new GestionCruce(i, null, sinRed, null, new RelojSistema());
+			gc.elegirFase();
+			if (i % 2 == 1)
+				gc.aplicar(GestionCruce.MANTENER | GestionCruce.GIRO_ON); //Mitad con el giro encendido
+			pc.guardar(gc);
+		}
+		pc.sincronizar();
+		pc.close();
+
+		GestionCruce[] cruces = new GestionCruce[n];
+		for (int i = 0; i < n; i++)
+			cruces[i] = new GestionCruce(i, null, sinRed, null, new RelojSistema());
+		long t0 = System.nanoTime();
+		pc = new PuntoControl(f.getPath());
+		int fallos = 0;
+		for (int i = 0; i < n; i++)
+			if (!pc.restaurar(cruces[i]))
+				fallos++;
+		long ms = (System.nanoTime() - t0) / 1000000;
+		pc.close();
+		f.delete();
+
+		EstadoCruce.Vista vista = new EstadoCruce.Vista();
+		for (int i = 0; i < n; i++) {
+			cruces[i].getEstado().leer(vista);
+			if (vista.modos[0] != 1 || (i % 2 == 1) != (vista.modos[5] == 2))
+				fallos++;
+		}
+		System.out.println(n + " cruces restaurados en " + ms + " ms (limite " + limite + " ms), " + fallos + " fallos");
+		if (ms > limite || fallos > 0)
+			System.exit(1);
+
+		if (!aMedias(n, limite, sinRed))
+			System.exit(1);
+	}
+
+	/*
+	 * Reloj que guarda el cruce en la esperaGuardar-esima espera de cambioLuz(), con el cambio a medias
+	 */
+	private static class RelojGuardando extends RelojVirtual {
+		private final PuntoControl pc;
+		private final int esperaGuardar;
+		private GestionCruce gc;
+		private int esperas;
+
+		RelojGuardando(PuntoControl pc, int esperaGuardar) {
+			super(0);
+			this.pc = pc;
+			this.esperaGuardar = esperaGuardar;
+		}
+
+		@Override
+		public void esperar(int segundos) {
+			try {
+				if (++esperas == esperaGuardar)
+					pc.guardar(gc);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			super.esperar(segundos);
+		}
+	}
+
+	private static boolean aMedias(int n, long limite, ConexionExterna sinRed) throws IOException {
+		Umbrales u = new Umbrales(1, 5, 5, 5, 60, 120, 3, 2);
+		FuenteDatos fuente = new FuenteDatos() {
+			@Override
+			public void leer(Calle c11, Calle c12, Calle c21, Calle c22) {
+				rellenar(c11, 2);
+				rellenar(c12, 2);
+				rellenar(c21, 9); //Mas coches en la calle 2: elegirFase() le da el verde
+				rellenar(c22, 9);
+			}
+
+			private void rellenar(Calle c, int coches) {
+				c.reset();
+				c.add(coches);
+			}
+		};
+		File f = File.createTempFile("puntos", ".bin");
+		f.delete();
+		PuntoControl pc = new PuntoControl(f.getPath());
+		int[] esperado = new int[n]; //Eje que tiene que quedar en verde
+		for (int i = 0; i < n; i++) {
+			//i % 5: 0 antes de elegir fase; 1 y 2 en el ambar y en el despeje del cambio hacia la calle 2;
+			//3 y 4 en el ambar y en el despeje del siguiente, de vuelta a la calle 1
+			int caso = i % 5;
+			RelojGuardando reloj = new RelojGuardando(pc, caso);
+			GestionCruce gc = new GestionCruce(i, null, sinRed, fuente, reloj);
+			reloj.gc = gc;
+			gc.setUmbrales(u);
+			if (caso == 0) {
+				pc.guardar(gc);
+				esperado[i] = 2; //La elige el primer tick con los conteos
+			} else {
+				gc.elegirFase(); //Sin lecturas: verde a la calle 1
+				gc.cambioLuz();
+				if (caso >= 3)
+					gc.cambioLuz();
+				esperado[i] = caso <= 2 ? 2 : 1;
+			}
+		}
+		pc.sincronizar();
+		pc.close();
+
+		GestionCruce[] cruces = new GestionCruce[n];
+		RelojVirtual[] relojes = new RelojVirtual[n];
+		for (int i = 0; i < n; i++) {
+			relojes[i] = new RelojVirtual(0);
+			cruces[i] = new GestionCruce(i, null, sinRed, fuente, relojes[i]);
+		}
+		long t0 = System.nanoTime();
+		pc = new PuntoControl(f.getPath());
+		int fallos = 0;
+		for (int i = 0; i < n; i++)
+			if (!pc.restaurar(cruces[i]))
+				fallos++;
+		long ms = (System.nanoTime() - t0) / 1000000;
+		pc.close();
+		f.delete();
+
+		EstadoCruce.Vista vista = new EstadoCruce.Vista();
+		for (int i = 0; i < n; i++) {
+			cruces[i].getEstado().leer(vista);
+			if (vista.modos[0] != 4 || vista.modos[4] != 4)
+				fallos++; //Todo en rojo hasta que acabe el despeje
+			if (i % 5 != 0) {
+				//Un tick antes de acabar el despeje no cambia nada
+				relojes[i].fijar(4000);
+				cruces[i].tick();
+				cruces[i].getEstado().leer(vista);
+				if (vista.modos[0] != 4 || vista.modos[4] != 4)
+					fallos++;
+			}
+			relojes[i].fijar(5000);
+			cruces[i].tick();
+			cruces[i].getEstado().leer(vista);
+			if ((esperado[i] == 1 ? vista.modos[0] : vista.modos[4]) != 1)
+				fallos++;
+		}
+		System.out.println(n + " cruces a medias de un cambio restaurados en " + ms + " ms (limite " + limite + " ms), "
+				+ fallos + " fallos");
+		return ms <= limite && fallos == 0;
+	}
+}
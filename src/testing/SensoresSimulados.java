@@ -0,0 +1,131 @@
+package testing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import principal.*;
+
+/*
+ * Servidor local que hace de sensores y empuja lecturas por server-sent events, para probar
+ * FuentePush sin el equipo real. Cada cierto tiempo cambia el trafico y envia una lectura; entre
+ * medias solo manda latidos. Conecta un cruce a el y mide cuanto tarda en publicarse el estado
+ * tras cada lectura enviada.
+ *
+ * Si el cliente pide FormatoBinario en Accept las lecturas van en binario; con binario el cruce lo
+ * pide y sus ordenes se cuentan en binario. Al final se comparan los bytes por lectura y por orden.
+ *
+ *   java testing.SensoresSimulados [lecturas] [puerto] [binario]
+ */
+public class SensoresSimulados {
+
+	public static void main(String[] args) throws Exception {
+		final int lecturas = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int puerto = args.length > 1 ? Integer.parseInt(args[1]) : 8089;
+		boolean binario = args.length > 2 && args[2].equals("binario");
+
+		final long[] bytes = new long[3]; //Bytes de lecturas, de ordenes y numero de ordenes
+		ConexionExterna sinRed = new ConexionExterna() {
+			@Override
+			public boolean postDatos(int modo, int posicion, long secuencia) {
+				//Solo se cuenta lo que iria por la red
+				bytes[1] += isBinario() ? FormatoBinario.orden(modo, posicion).length
+						: ConexionExterna.cuerpo(modo, posicion).length();
+				bytes[2]++;
+				return true;
+			}
+		};
+		sinRed.setBinario(binario);
+		FuentePush fuente = new FuentePush("http://localhost:" + puerto + "/sensores", 3000, binario);
+		final GestionCruce gc = new GestionCruce(1, null, sinRed, fuente, new RelojSistema());
+		final long[] latencias = new long[lecturas];
+
+		HttpServer servidor = HttpServer.create(new InetSocketAddress(puerto), 0);
+		servidor.createContext("/sensores", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange ex) throws IOException {
+				String accept = ex.getRequestHeaders().getFirst("Accept");
+				boolean enBinario = accept != null && accept.contains(FormatoBinario.TIPO);
+				ex.getResponseHeaders().set("Content-Type", enBinario ? FormatoBinario.TIPO : "text/event-stream");
+				ex.sendResponseHeaders(200, 0);
+				Random azar = new Random(1);
+				int[][] vias = new int[4][2];
+				int[] numVias = { 2, 2, 2, 2 };
+				byte[] trama = new byte[FormatoBinario.MAX_LECTURA];
+				byte[] latido = enBinario ? new byte[] { 0 } : ":\n\n".getBytes(StandardCharsets.UTF_8);
+				try (OutputStream os = ex.getResponseBody()) {
+					for (int i = 0; i < lecturas; i++) {
+						//Trafico quieto un rato: solo latidos
+						for (int j = azar.nextInt(3); j > 0; j--) {
+							dormir(100);
+							os.write(latido);
+							os.flush();
+						}
+						long version = gc.getEstado().getVersion();
+						for (int k = 0; k < 4; k++) {
+							vias[k][0] = azar.nextInt(10);
+							vias[k][1] = azar.nextInt(10);
+						}
+						int largo;
+						if (enBinario) {
+							largo = FormatoBinario.escribirLectura(trama, 0, vias, numVias, 4);
+						} else {
+							StringBuilder sb = new StringBuilder("data: [");
+							for (int k = 0; k < 4; k++) {
+								sb.append(k > 0 ? ",[" : "[").append(vias[k][0]).append(',').append(vias[k][1]).append(']');
+							}
+							sb.append("]\n\n");
+							byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+							largo = b.length;
+							System.arraycopy(b, 0, trama, 0, largo);
+						}
+						bytes[0] += largo;
+						long t0 = System.nanoTime();
+						os.write(trama, 0, largo);
+						os.flush();
+						//Hasta que el tick que dispara la lectura publica el estado
+						while (gc.getEstado().getVersion() == version && System.nanoTime() - t0 < 1000000000L)
+							Thread.onSpinWait();
+						latencias[i] = System.nanoTime() - t0;
+					}
+				}
+			}
+		});
+		servidor.start();
+
+		gc.timer();
+		gc.elegirFase();
+		fuente.conectar(gc);
+		while (fuente.getLecturas() < lecturas)
+			dormir(50);
+		dormir(200);
+		servidor.stop(0);
+		fuente.parar();
+
+		long suma = 0;
+		long max = 0;
+		for (long l : latencias) {
+			suma += l;
+			max = Math.max(max, l);
+		}
+		System.out.println(lecturas + " lecturas empujadas, de lectura a estado: media " + suma / lecturas / 1000
+				+ " us, max " + max / 1000 + " us");
+		System.out.println((binario ? "Binario" : "Texto") + ": " + bytes[0] / lecturas + " bytes por lectura, "
+				+ (bytes[2] > 0 ? bytes[1] / bytes[2] : 0) + " bytes por orden (" + bytes[2] + " ordenes)");
+		System.exit(0);
+	}
+
+	private static void dormir(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}